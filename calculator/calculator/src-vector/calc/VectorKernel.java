@@ -0,0 +1,66 @@
+package calc;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import static calc.Calculator.DIV_BY_ZERO;
+
+/*
+ *   Operator loops using the Vector API (jdk.incubator.vector)
+ *
+ *   Kept apart from src so the rest compiles without the incubator
+ *   module. Compile and run with --add-modules jdk.incubator.vector,
+ *   ColumnEvaluator finds this class by name and falls back to the
+ *   scalar kernel if it can't be loaded.
+ *
+ *   + - * / are exact IEEE operations in any lane width, so results are
+ *   bit for bit those of the scalar kernel. ^ stays scalar, as the
+ *   vector pow may differ from Math.pow in the last bit.
+ */
+final class VectorKernel implements ColumnEvaluator.Kernel {
+
+    private final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void apply(int op, double[] s, int left, int right, int n) {
+        int bound = op == Token.POW ? 0 : SPECIES.loopBound(n);
+        int step = SPECIES.length();
+        int k = 0;
+        switch (op) {
+            case Token.ADD:
+                for (; k < bound; k += step) {
+                    DoubleVector r = DoubleVector.fromArray(SPECIES, s, right + k);
+                    r.add(DoubleVector.fromArray(SPECIES, s, left + k)).intoArray(s, left + k);
+                }
+                break;
+            case Token.SUB:
+                for (; k < bound; k += step) {
+                    DoubleVector l = DoubleVector.fromArray(SPECIES, s, left + k);
+                    l.sub(DoubleVector.fromArray(SPECIES, s, right + k)).intoArray(s, left + k);
+                }
+                break;
+            case Token.MUL:
+                for (; k < bound; k += step) {
+                    DoubleVector r = DoubleVector.fromArray(SPECIES, s, right + k);
+                    r.mul(DoubleVector.fromArray(SPECIES, s, left + k)).intoArray(s, left + k);
+                }
+                break;
+            case Token.DIV:
+                for (; k < bound; k += step) {
+                    DoubleVector r = DoubleVector.fromArray(SPECIES, s, right + k);
+                    if (r.compare(VectorOperators.EQ, 0).anyTrue()) {
+                        throw new IllegalArgumentException(DIV_BY_ZERO);
+                    }
+                    DoubleVector.fromArray(SPECIES, s, left + k).div(r).intoArray(s, left + k);
+                }
+                break;
+            default:
+                break;
+        }
+        // Tail (and ^) in scalar code
+        if (k < n) {
+            ColumnEvaluator.apply(op, s, left + k, right + k, n - k);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package calc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ *   Asynchronous, batched access log
+ *
+ *   Request threads only put a line in a bounded queue. A background
+ *   thread takes lines in batches and writes each batch with one flush.
+ *   If the queue is full lines are dropped (and counted), a request
+ *   never waits for the console.
+ */
+final class AccessLog implements AutoCloseable {
+
+    private final static int QUEUE_SIZE = 8192;
+    private final static int BATCH_SIZE = 512;
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final LongAdder dropped = new LongAdder();
+    private final Writer out;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    AccessLog(OutputStream os) {
+        out = new OutputStreamWriter(os, UTF_8);
+        writer = new Thread(this::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void log(String method, String uri, int status, long nanos, String detail) {
+        String line = method + " " + uri + " " + status + " " + nanos / 1000 + "us" +
+                (detail.isEmpty() ? "" : " " + detail);
+        if (closed || !queue.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                String first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (String line : batch) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closed = true;
+        }
+    }
+
+    // Write what is queued and stop
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package calc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ *   Admission control for WebCalcServer, so overload is shed and not queued
+ *
+ *   At most limit requests run at a time. Others wait in a bounded queue
+ *   (first come first served) until a slot is free or their deadline,
+ *   counted from arrival, has passed. The slot of a finished request is
+ *   handed to the first waiter, so nobody can jump the queue.
+ *
+ *   Each request has a cost, estimated from the length and nesting of
+ *   the expression (see cost). Expensive requests are shed first:
+ *   - When the queue is half full, requests costing more than shedCost
+ *     are rejected at once
+ *   - When it's full, the most expensive of the waiters and the new
+ *     request is rejected
+ *
+ *   A rejected or timed out request should get a 503 at once, a client
+ *   waiting for that is better off than one waiting behind everybody.
+ */
+final class AdmissionControl {
+
+    enum Outcome {
+        ADMITTED, REJECTED, TIMED_OUT
+    }
+
+    // A level of nesting costs as much as this many chars
+    final static int DEPTH_COST = 8;
+
+    private final int limit;
+    private final int maxQueue;
+    private final long deadlineNanos;
+    private final int shedCost;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Waiter> waiting = new ArrayDeque<>();   // Guarded by lock
+    private int running;                                       // Guarded by lock
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private static final class Waiter {
+        final int cost;
+        final Condition ready;
+        Outcome outcome;     // Set by others while waiting, guarded by lock
+
+        Waiter(int cost, Condition ready) {
+            this.cost = cost;
+            this.ready = ready;
+        }
+    }
+
+    AdmissionControl(int limit, int maxQueue, long deadlineMillis, int shedCost) {
+        if (limit < 1 || maxQueue < 0 || deadlineMillis < 0) {
+            throw new IllegalArgumentException("Bad admission settings");
+        }
+        this.limit = limit;
+        this.maxQueue = maxQueue;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        this.shedCost = shedCost;
+    }
+
+    // Cost of evaluating expr: its length plus DEPTH_COST per level of
+    // parentheses (deep nesting is slower to parse and takes more memory)
+    static int cost(String expr) {
+        int depth = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == '(') {
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (c == ')') {
+                depth--;
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, expr.length() + (long) DEPTH_COST * maxDepth);
+    }
+
+    // Wait for a slot for a request of cost that arrived at start (from
+    // System.nanoTime()). If ADMITTED, release() must be called after.
+    Outcome admit(int cost, long start) {
+        lock.lock();
+        try {
+            if (running < limit && waiting.isEmpty()) {
+                running++;
+                admitted.increment();
+                return Outcome.ADMITTED;
+            }
+            if (waiting.size() >= maxQueue / 2 && cost > shedCost) {
+                rejected.increment();
+                return Outcome.REJECTED;
+            }
+            if (waiting.size() >= maxQueue && !shedCostliest(cost)) {
+                rejected.increment();
+                return Outcome.REJECTED;
+            }
+            Waiter w = new Waiter(cost, lock.newCondition());
+            waiting.add(w);
+            queued.increment();
+            return await(w, start + deadlineNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Make room by rejecting the most expensive waiter, if it costs more
+    private boolean shedCostliest(int cost) {
+        Waiter costliest = null;
+        for (Waiter w : waiting) {
+            if (costliest == null || w.cost > costliest.cost) {
+                costliest = w;
+            }
+        }
+        if (costliest == null || costliest.cost <= cost) {
+            return false;
+        }
+        waiting.remove(costliest);
+        costliest.outcome = Outcome.REJECTED;
+        costliest.ready.signal();
+        return true;
+    }
+
+    private Outcome await(Waiter w, long deadline) {
+        boolean interrupted = false;
+        long left = deadline - System.nanoTime();
+        while (w.outcome == null && left > 0) {
+            try {
+                left = w.ready.awaitNanos(left);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (w.outcome == null) {
+            waiting.remove(w);
+            w.outcome = interrupted ? Outcome.REJECTED : Outcome.TIMED_OUT;
+        }
+        switch (w.outcome) {
+            case ADMITTED:
+                admitted.increment();
+                break;
+            case REJECTED:
+                rejected.increment();
+                break;
+            default:
+                timedOut.increment();
+        }
+        return w.outcome;
+    }
+
+    // An admitted request is done, its slot goes to the first waiter
+    void release() {
+        lock.lock();
+        try {
+            Waiter next = waiting.poll();
+            if (next == null) {
+                running--;
+            } else {
+                next.outcome = Outcome.ADMITTED;
+                next.ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---------- Reporting -----------------------
+
+    long admitted() {
+        return admitted.sum();
+    }
+
+    // Had to wait (then admitted, rejected or timed out)
+    long queued() {
+        return queued.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    long timedOut() {
+        return timedOut.sum();
+    }
+
+    int running() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int waiting() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
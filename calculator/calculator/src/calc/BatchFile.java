@@ -0,0 +1,248 @@
+package calc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/*
+ *   Evaluates a file of expressions into a file of results
+ *
+ *   The batch version of the REPL, for files of any size: one expression
+ *   per line in, one result per line out (the value or the error message,
+ *   as the REPL prints them).
+ *
+ *   The input is memory mapped a chunk at a time. Chunks end at a line
+ *   end and are evaluated in parallel, each into its own byte array that
+ *   is written with one channel write, in input order. Only a few chunks
+ *   per thread are in flight, so memory use does not grow with the file.
+ *   Progress and throughput go to stderr every second.
+ *
+ *   Arguments: in out [-t threads] [-c chunk bytes]
+ */
+final class BatchFile {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            err.println("Usage: BatchFile in out [-t threads] [-c chunk bytes]");
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkSize = CHUNK;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-t":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-c":
+                    chunkSize = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        new BatchFile(new Calculator(), threads, chunkSize).run(Paths.get(args[0]), Paths.get(args[1]), err);
+    }
+
+    // Bytes of input per chunk (more if a line is longer)
+    final static int CHUNK = 1 << 20;
+    // Chunks in flight per thread
+    final static int AHEAD = 2;
+
+    private final Calculator calculator;
+    private final int threads;
+    private final int chunkSize;
+    // Progress, updated as chunks are done
+    private final LongAdder bytesDone = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    BatchFile(Calculator calculator, int threads, int chunkSize) {
+        if (threads < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Threads and chunk size must be positive");
+        }
+        this.calculator = calculator;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    // Evaluate every line of input into output, progress may be null.
+    // Returns the number of lines.
+    long run(Path input, Path output, PrintStream progress) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+        long start = System.nanoTime();
+        try (FileChannel in = FileChannel.open(input, READ);
+             FileChannel out = FileChannel.open(output, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            long size = in.size();
+            if (progress != null) {
+                ticker.scheduleAtFixedRate(() -> report(progress, size, start), 1, 1, TimeUnit.SECONDS);
+            }
+            Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+            long pos = 0;
+            while (pos < size || !pending.isEmpty()) {
+                while (pos < size && pending.size() < AHEAD * threads) {
+                    long end = lineEnd(in, pos, size);
+                    if (end - pos > Integer.MAX_VALUE) {
+                        throw new IOException("Line too long at " + pos);
+                    }
+                    ByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, pos, end - pos);
+                    pending.add(pool.submit(() -> evaluate(chunk)));
+                    pos = end;
+                }
+                ByteBuffer results = await(pending.remove());
+                while (results.hasRemaining()) {
+                    out.write(results);
+                }
+            }
+            if (progress != null) {
+                report(progress, size, start);
+            }
+        } finally {
+            ticker.shutdownNow();
+            pool.shutdownNow();
+        }
+        return lines.sum();
+    }
+
+    // End of the chunk starting at from: after the first '\n' at or past
+    // from + chunkSize - 1, or the end of the file
+    private long lineEnd(FileChannel in, long from, long size) throws IOException {
+        if (size - from <= chunkSize) {
+            return size;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(4096);
+        long pos = from + chunkSize - 1;
+        while (pos < size) {
+            bb.clear();
+            int n = in.read(bb, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (bb.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static ByteBuffer await(Future<ByteBuffer> result) throws IOException, InterruptedException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // ---------- Evaluation, in a worker -----------------------
+
+    // Results of the lines in chunk. Text is ASCII (as the Lexer expects),
+    // each byte is a char. '\r' is dropped (CRLF line ends).
+    private ByteBuffer evaluate(ByteBuffer chunk) {
+        int size = chunk.remaining();
+        byte[] line = new byte[128];
+        int length = 0;
+        Output out = new Output(size + 64);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            byte b = chunk.get(i);
+            if (b == '\n') {
+                eval(line, length, out);
+                length = 0;
+                count++;
+            } else if (b != '\r') {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, 2 * length);
+                }
+                line[length++] = b;
+            }
+        }
+        if (length > 0) {
+            eval(line, length, out);   // Last line, no '\n'
+            count++;
+        }
+        lines.add(count);
+        bytesDone.add(size);
+        return ByteBuffer.wrap(out.bytes, 0, out.size);
+    }
+
+    private void eval(byte[] line, int length, Output out) {
+        Result result = calculator.evalResult(new String(line, 0, length, ISO_8859_1));
+        if (result.isError()) {
+            errors.increment();
+        }
+        out.append(result.toString());
+        out.append('\n');
+    }
+
+    // Growing byte array for ASCII text
+    private static final class Output {
+        byte[] bytes;
+        int size;
+
+        Output(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void append(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[size++] = (byte) s.charAt(i);   // ASCII
+            }
+        }
+
+        void append(char c) {
+            ensure(1);
+            bytes[size++] = (byte) c;
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + n));
+            }
+        }
+    }
+
+    // ---------- Progress -----------------------
+
+    long lines() {
+        return lines.sum();
+    }
+
+    long errors() {
+        return errors.sum();
+    }
+
+    private void report(PrintStream progress, long size, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long done = bytesDone.sum();
+        long n = lines.sum();
+        progress.printf("%5.1f%%  %,d lines (%,d errors)  %.1f MB/s  %,.0f lines/s%n",
+                size == 0 ? 100.0 : 100.0 * done / size, n, errors.sum(), done / 1e6 / seconds, n / seconds);
+    }
+}
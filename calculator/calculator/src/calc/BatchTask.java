@@ -0,0 +1,50 @@
+package calc;
+
+import java.util.concurrent.RecursiveAction;
+
+/*
+ *   Evaluates a range of an expression array with fork-join
+ *
+ *   The range is split in halves until it is small enough, each item
+ *   is written to its own index so results are in input order.
+ */
+final class BatchTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // Below this many expressions a task does the work itself
+    final static int THRESHOLD = 512;
+
+    private final Calculator calculator;
+    private final String[] exprs;
+    private final double[] results;
+    private final ErrorCode[] errors;    // May be null
+    private final int from;
+    private final int to;
+
+    BatchTask(Calculator calculator, String[] exprs, double[] results, ErrorCode[] errors, int from, int to) {
+        this.calculator = calculator;
+        this.exprs = exprs;
+        this.results = results;
+        this.errors = errors;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= THRESHOLD) {
+            for (int i = from; i < to; i++) {
+                Result r = calculator.evalResult(exprs[i]);
+                results[i] = r.value;
+                if (errors != null) {
+                    errors[i] = r.error;
+                }
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchTask(calculator, exprs, results, errors, from, mid),
+                    new BatchTask(calculator, exprs, results, errors, mid, to));
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package calc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.math.MathContext;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Double.NaN;
+import static java.lang.System.out;
+
+/*
+ *   Benchmarks for the Calculator pipeline
+ *
+ *   Every stage (tokenize, infix2Postfix, evalPostfix, eval) is measured
+ *   on every Corpus, each input prepared by the stage before. Reports
+ *   throughput and allocated bytes per operation (from the thread's
+ *   allocation counter). Results are written as JSON so runs can be
+ *   compared later.
+ *
+ *   The columns benchmarks evaluate one formula over 1M rows of values,
+ *   as strings (one eval per row) and compiled with variables (per row,
+ *   by columns with the default and the scalar kernel and by columns in
+ *   parallel). Throughput is rows/s.
+ *
+ *   The error benchmarks compare valid and invalid input, and errors as
+ *   values with errors as exceptions. The decimal benchmarks compare
+ *   decimal with double evaluation (from the cache). The scaling
+ *   benchmarks evaluate from 1, 2, 4 ... threads at once on the same
+ *   Calculator, throughput is of all threads.
+ *
+ *   Arguments (all optional):
+ *     -w n       Warmup iterations (default 3)
+ *     -i n       Measured iterations (default 5)
+ *     -t ms      Time per iteration (default 1000)
+ *     -f text    Only benchmarks whose name contains text
+ *     -o file    JSON result file (default bench-<time>.json)
+ *     compare old.json new.json    Compare two result files
+ *
+ *   Right click and run ...
+ */
+class Bench {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("compare")) {
+            compare(Paths.get(args[1]), Paths.get(args[2]));
+            return;
+        }
+        Bench bench = new Bench();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            bench.set(args[i], args[i + 1]);
+        }
+        bench.run();
+    }
+
+    // A benchmark, does operation i (modulo corpus size) and returns
+    // something that depends on the result so it can't be optimized away
+    interface Op {
+        double run(int i);
+    }
+
+    int warmups = 3;
+    int iterations = 5;
+    long iterationMillis = 1000;
+    String filter = "";
+    Path output = Paths.get("bench-" + Instant.now().toString().replace(':', '-') + ".json");
+
+    // The long flat corpus needs about 1.8 MB of cache, more than the default
+    final Calculator calculator = new Calculator(
+            new ExpressionCache(ExpressionCache.DEFAULT_MAX_ENTRIES, 16L << 20), new Promoter());
+    private final List<Measurement> results = new ArrayList<>();
+    // Results go here so the JIT can't drop the work
+    volatile double sink;
+
+    private final static com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    void set(String option, String value) {
+        switch (option) {
+            case "-w":
+                warmups = Integer.parseInt(value);
+                break;
+            case "-i":
+                iterations = Integer.parseInt(value);
+                break;
+            case "-t":
+                iterationMillis = Long.parseLong(value);
+                break;
+            case "-f":
+                filter = value;
+                break;
+            case "-o":
+                output = Paths.get(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    void run() throws IOException {
+        for (Corpus corpus : Corpus.values()) {
+            List<String> exprs = corpus.expressions();
+            int n = exprs.size();
+            List<List<String>> tokens = new ArrayList<>();
+            List<List<String>> postfix = new ArrayList<>();
+            for (String expr : exprs) {
+                tokens.add(calculator.tokenize(expr));
+                postfix.add(calculator.infix2Postfix(tokens.get(tokens.size() - 1)));
+            }
+            String c = corpus.name().toLowerCase();
+            measure("tokenize", c, i -> calculator.tokenize(exprs.get(i % n)).size());
+            measure("infix2Postfix", c, i -> calculator.infix2Postfix(tokens.get(i % n)).size());
+            measure("evalPostfix", c, i -> calculator.evalPostfix(postfix.get(i % n)));
+            measure("eval", c, i -> calculator.eval(exprs.get(i % n)));
+        }
+        measureColumns();
+        measureErrors();
+        measureDecimal();
+        measureScaling();
+        report();
+        out.println(calculator.getOptimizer().report());
+        write(output);
+        out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    private void measureColumns() {
+        final int rows = 1 << 20;
+        final int mask = rows - 1;
+        Random rand = new Random(42);
+        double[] x = new double[rows];
+        double[] y = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            // Three decimals, as text never in E notation
+            x[i] = (1000 + rand.nextInt(1_000_000)) / 1000.0;
+            y[i] = (1000 + rand.nextInt(1_000_000)) / 1000.0;
+        }
+        Formula f = calculator.compile("x^2 + 3*x - y / 2", "x", "y");
+        double[][] columns = {x, y};
+        double[] out = new double[rows];
+        measure("strings", "columns", i -> {
+            double acc = 0;
+            for (int k = i & mask, end = k + 1024; k < end; k++) {
+                acc += calculator.eval(x[k] + "^2 + 3*" + x[k] + " - " + y[k] + " / 2");
+            }
+            return acc;
+        }, 1024);
+        measure("formulaRows", "columns", i -> {
+            double acc = 0;
+            for (int k = i & mask, end = k + 1024; k < end; k++) {
+                acc += f.eval(x[k], y[k]);
+            }
+            return acc;
+        }, 1024);
+        measure("formulaColumns", "columns", i -> {
+            int from = i & mask;
+            f.evalColumns(columns, out, from, from + 65536);
+            return out[from];
+        }, 65536);
+        double[] scratch = ColumnEvaluator.scratch(f.program());
+        measure("formulaScalar", "columns", i -> {
+            int from = i & mask;
+            ColumnEvaluator.run(f.program(), columns, out, from, from + 65536, scratch, ColumnEvaluator.SCALAR);
+            return out[from];
+        }, 65536);
+        measure("formulaParallel", "columns", i -> {
+            f.evalColumns(columns, out);
+            return out[i & mask];
+        }, rows);
+    }
+
+    // Invalid input should cost about as much as valid. Compiled without
+    // the cache (invalid input is never cached), with errors as values
+    // (check) and as exceptions (throwing, as before Status).
+    private void measureErrors() {
+        List<String> valid = Corpus.SHORT.expressions();
+        List<String> invalid = new ArrayList<>();
+        for (int i = 0; i < valid.size(); i++) {
+            String e = valid.get(i);
+            switch (i % 4) {
+                case 0:
+                    invalid.add(e + " +");      // Missing operand
+                    break;
+                case 1:
+                    invalid.add("(" + e);       // Missing parenthesis
+                    break;
+                case 2:
+                    invalid.add(e + " 1");      // Missing operator
+                    break;
+                default:
+                    invalid.add(e + " / 0");    // Found when run
+                    break;
+            }
+        }
+        int n = valid.size();
+        measure("check", "valid", i -> check(valid.get(i % n)));
+        measure("check", "invalid", i -> check(invalid.get(i % n)));
+        measure("throwing", "invalid", i -> {
+            try {
+                return calculator.compile(invalid.get(i % n)).run();
+            } catch (RuntimeException e) {
+                return e.getMessage().length();
+            }
+        });
+        measure("evalResult", "invalid", i -> calculator.evalResult(invalid.get(i % n)).error.ordinal());
+    }
+
+    // Cost of decimal evaluation against double, on Corpus.SHORT (mostly
+    // BigDecimal, it has 0.1 and 1 / 3) and on integers (the fast path)
+    private void measureDecimal() {
+        List<String> mixed = Corpus.SHORT.expressions();
+        List<String> integers = new ArrayList<>();
+        for (String e : mixed) {
+            integers.add(e.replaceAll("\\.[0-9]", "").replace('/', '-'));
+        }
+        int n = mixed.size();
+        MathContext mc = MathContext.DECIMAL128;
+        measure("double", "integers", i -> calculator.evalResult(integers.get(i % n)).value);
+        measure("decimal", "integers", i -> calculator.evalResult(integers.get(i % n), mc).value);
+        measure("double", "short", i -> calculator.evalResult(mixed.get(i % n)).value);
+        measure("decimal", "short", i -> calculator.evalResult(mixed.get(i % n), mc).value);
+        // Without the fast path
+        List<Program> programs = new ArrayList<>();
+        for (String e : integers) {
+            programs.add(calculator.compile(e));
+        }
+        measure("bigDecimal", "integers", i ->
+                DecimalEvaluator.runDecimal(programs.get(i % n), new double[0], mc, new Status()).scale());
+    }
+
+    // One shared Calculator evaluating Corpus.SHORT (cache hits) from 1,
+    // 2, 4 ... threads, up to twice the CPUs. Nothing is locked on the
+    // way, so throughput should grow with the threads up to the CPUs and
+    // then stay flat.
+    private void measureScaling() {
+        List<String> exprs = Corpus.SHORT.expressions();
+        int n = exprs.size();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= 2 * cpus; threads *= 2) {
+            measure("scaling", "threads-" + threads, i -> calculator.evalResult(exprs.get(i % n)).value, 1, threads);
+        }
+    }
+
+    private double check(String expr) {
+        Status status = new Status();
+        Program program = calculator.tryCompile(expr, status);
+        double result = program == null ? NaN : program.run(status);
+        return status.isError() ? status.offset() : result;
+    }
+
+    // ---------- Measuring -----------------------
+
+    void measure(String benchmark, String corpus, Op op) {
+        measure(benchmark, corpus, op, 1);
+    }
+
+    void measure(String benchmark, String corpus, Op op, int opsPerCall) {
+        measure(benchmark, corpus, op, opsPerCall, 1);
+    }
+
+    // opsPerCall is how many operations one call to op counts as, op is
+    // called by this many threads at once (then it must be thread-safe)
+    void measure(String benchmark, String corpus, Op op, int opsPerCall, int threads) {
+        String name = benchmark + ":" + corpus;
+        if (!name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < warmups; i++) {
+            iteration(op, opsPerCall, threads);
+        }
+        double[] opsPerSec = new double[iterations];
+        double bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            double[] r = iteration(op, opsPerCall, threads);
+            opsPerSec[i] = r[0];
+            bytes += r[1];
+        }
+        Measurement m = new Measurement(benchmark, corpus, opsPerSec, bytes / iterations);
+        results.add(m);
+        out.println(m);
+    }
+
+    // Returns {ops per second, bytes allocated per op}, of all threads
+    private double[] iteration(Op op, int opsPerCall, int threads) {
+        double[][] counts = new double[threads][];
+        Thread[] others = new Thread[threads - 1];
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1_000_000;
+        for (int t = 0; t < others.length; t++) {
+            int id = t + 1;
+            others[t] = new Thread(() -> counts[id] = loop(op, opsPerCall, deadline), "bench-" + id);
+            others[t].start();
+        }
+        counts[0] = loop(op, opsPerCall, deadline);
+        try {
+            for (Thread t : others) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+        long now = System.nanoTime();
+        double ops = 0;
+        double bytes = 0;
+        double acc = 0;
+        for (double[] c : counts) {
+            ops += c[0];
+            bytes += c[1];
+            acc += c[2];
+        }
+        sink = acc;
+        return new double[]{ops * 1e9 / (now - start), bytes / ops};
+    }
+
+    // Run op on this thread until deadline, returns {ops, bytes allocated,
+    // sum of results}
+    private double[] loop(Op op, int opsPerCall, long deadline) {
+        long threadId = Thread.currentThread().getId();
+        long ops = 0;
+        double acc = 0;
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        // Check the clock only every 64 calls (if they are short)
+        int batch = opsPerCall == 1 ? 64 : 1;
+        do {
+            for (int j = 0; j < batch; j++) {
+                acc += op.run((int) ops);
+                ops += opsPerCall;
+            }
+        } while (System.nanoTime() < deadline);
+        long bytes = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+        return new double[]{ops, bytes, acc};
+    }
+
+    static final class Measurement {
+        final String benchmark;
+        final String corpus;
+        final double opsPerSec;      // Mean
+        final double error;          // Standard deviation
+        final double bytesPerOp;
+
+        Measurement(String benchmark, String corpus, double[] opsPerSec, double bytesPerOp) {
+            this.benchmark = benchmark;
+            this.corpus = corpus;
+            this.bytesPerOp = bytesPerOp;
+            double sum = 0;
+            for (double d : opsPerSec) {
+                sum += d;
+            }
+            this.opsPerSec = sum / opsPerSec.length;
+            double sq = 0;
+            for (double d : opsPerSec) {
+                sq += (d - this.opsPerSec) * (d - this.opsPerSec);
+            }
+            this.error = opsPerSec.length > 1 ? Math.sqrt(sq / (opsPerSec.length - 1)) : 0;
+        }
+
+        String name() {
+            return benchmark + ":" + corpus;
+        }
+
+        // Allocation rate in MB/s
+        double allocationRate() {
+            return opsPerSec * bytesPerOp / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-22s %14.0f +- %-10.0f ops/s %12.1f B/op %10.1f MB/s",
+                    name(), opsPerSec, error, bytesPerOp, allocationRate());
+        }
+    }
+
+    // ---------- Results -----------------------
+
+    void report() {
+        out.println();
+        out.printf("%-22s %14s   %-10s %17s %15s%n", "Benchmark", "Throughput", "Error", "Alloc", "Alloc rate");
+        for (Measurement m : results) {
+            out.println(m);
+        }
+    }
+
+    List<Measurement> results() {
+        return results;
+    }
+
+    // One JSON object, one result per line to keep diffs readable
+    void write(Path file) throws IOException {
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(file))) {
+            pw.println("{");
+            pw.printf("  \"jdk\": \"%s\",%n", System.getProperty("java.version"));
+            pw.printf("  \"cpus\": %d,%n", Runtime.getRuntime().availableProcessors());
+            pw.printf("  \"time\": \"%s\",%n", Instant.now());
+            pw.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                Measurement m = results.get(i);
+                pw.printf(java.util.Locale.ROOT,
+                        "    {\"benchmark\": \"%s\", \"corpus\": \"%s\", \"opsPerSec\": %.1f, \"error\": %.1f, " +
+                                "\"bytesPerOp\": %.1f, \"allocMBPerSec\": %.1f}%s%n",
+                        m.benchmark, m.corpus, m.opsPerSec, m.error, m.bytesPerOp, m.allocationRate(),
+                        i < results.size() - 1 ? "," : "");
+            }
+            pw.println("  ]");
+            pw.println("}");
+        }
+    }
+
+    // Throughput per benchmark from a file written by write()
+    static Map<String, double[]> read(Path file) throws IOException {
+        Pattern p = Pattern.compile("\"benchmark\": \"([^\"]+)\", \"corpus\": \"([^\"]+)\", " +
+                "\"opsPerSec\": ([0-9.]+), \"error\": [0-9.]+, \"bytesPerOp\": ([0-9.]+)");
+        Map<String, double[]> results = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            Matcher m = p.matcher(line);
+            if (m.find()) {
+                results.put(m.group(1) + ":" + m.group(2),
+                        new double[]{Double.parseDouble(m.group(3)), Double.parseDouble(m.group(4))});
+            }
+        }
+        return results;
+    }
+
+    static void compare(Path before, Path after) throws IOException {
+        Map<String, double[]> old = read(before);
+        Map<String, double[]> now = read(after);
+        out.printf("%-22s %14s %14s %8s %12s %12s%n", "Benchmark", "Before ops/s", "After ops/s", "Ratio",
+                "Before B/op", "After B/op");
+        for (Map.Entry<String, double[]> e : now.entrySet()) {
+            double[] o = old.get(e.getKey());
+            if (o == null) {
+                continue;
+            }
+            double[] n = e.getValue();
+            out.printf("%-22s %14.0f %14.0f %8.2f %12.1f %12.1f%n", e.getKey(), o[0], n[0], n[0] / o[0], o[1], n[1]);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package calc;
+
+/*
+ *   Time spent in each phase of the Calculator
+ *
+ *   tokenize, infix2Postfix and optimize are only timed when an
+ *   expression is compiled (cache misses), evalPostfix on every
+ *   evaluation.
+ */
+final class CalcMetrics {
+
+    final Histogram tokenize = new Histogram();
+    final Histogram infix2Postfix = new Histogram();
+    final Histogram optimize = new Histogram();
+    final Histogram evalPostfix = new Histogram();
+
+    void writePrometheus(StringBuilder sb, ExpressionCache cache, Optimizer optimizer) {
+        sb.append("# HELP calc_phase_seconds Time per Calculator phase\n");
+        sb.append("# TYPE calc_phase_seconds histogram\n");
+        tokenize.writePrometheus(sb, "calc_phase_seconds", "phase=\"tokenize\"");
+        infix2Postfix.writePrometheus(sb, "calc_phase_seconds", "phase=\"infix2Postfix\"");
+        optimize.writePrometheus(sb, "calc_phase_seconds", "phase=\"optimize\"");
+        evalPostfix.writePrometheus(sb, "calc_phase_seconds", "phase=\"evalPostfix\"");
+
+        sb.append("# HELP calc_cache_total Expression cache events\n");
+        sb.append("# TYPE calc_cache_total counter\n");
+        sb.append("calc_cache_total{event=\"hit\"} ").append(cache.hits()).append('\n');
+        sb.append("calc_cache_total{event=\"miss\"} ").append(cache.misses()).append('\n');
+        sb.append("calc_cache_total{event=\"eviction\"} ").append(cache.evictions()).append('\n');
+        sb.append("# TYPE calc_cache_entries gauge\n");
+        sb.append("calc_cache_entries ").append(cache.size()).append('\n');
+
+        sb.append("# HELP calc_optimizer_total Optimizer passes applied and operators removed\n");
+        sb.append("# TYPE calc_optimizer_total counter\n");
+        sb.append("calc_optimizer_total{event=\"program\"} ").append(optimizer.programs()).append('\n');
+        sb.append("calc_optimizer_total{event=\"fold\"} ").append(optimizer.folded()).append('\n');
+        sb.append("calc_optimizer_total{event=\"shared\"} ").append(optimizer.shared()).append('\n');
+        sb.append("calc_optimizer_total{event=\"identity\"} ").append(optimizer.simplified()).append('\n');
+        sb.append("calc_optimizer_total{event=\"removed_operator\"} ").append(optimizer.removed()).append('\n');
+    }
+}
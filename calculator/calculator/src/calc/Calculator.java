@@ -1,6 +1,15 @@
 package calc;
 
-import java.util.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static java.lang.Double.NaN;
 import static java.lang.Math.pow;
@@ -13,7 +22,12 @@ import static java.lang.Math.pow;
  *   own file (which must be named Calculator.java)
  *
  *   NOTE:
- *   - No negative numbers implemented
+ *   - Negative numbers by unary minus, -2 ^ 2 is -4
+ *   - Functions like sqrt(x) and max(x; y) and more operators, see Operators
+ *   - Safe for concurrent use by many threads without locks: programs
+ *     are immutable, the evaluation stack is per thread (see Program),
+ *     a cache hit takes no lock (see ExpressionCache) and counters are
+ *     LongAdders. Only cache misses and promotions take a lock.
  */
 class Calculator {
 
@@ -23,156 +37,270 @@ class Calculator {
     final static String DIV_BY_ZERO = "Division with 0";
     final static String MISSING_OPERATOR = "Missing operator or parenthesis";
     final static String OP_NOT_FOUND = "Operator not found";
+    final static String UNKNOWN_VARIABLE = "Unknown variable";
+    final static String NO_DECIMAL = "No decimal result";
+
+    private final static double[] NO_VARIABLES = new double[0];
 
     // Definition of operators
     final static String OPERATORS = "+-*/^";
 
+    // Compiled expressions, repeated input skips tokenize and infix2Postfix
+    private final ExpressionCache cache;
+    // Folds constants and shares common subexpressions
+    private final Optimizer optimizer = new Optimizer();
+    // Hot expressions are compiled to MethodHandles
+    private final Promoter promoter;
+    // Time per phase
+    private final CalcMetrics metrics = new CalcMetrics();
+
+    Calculator() {
+        this(new ExpressionCache(), new Promoter());
+    }
+
+    // With another cache size or promotion threshold (for testing)
+    Calculator(ExpressionCache cache, Promoter promoter) {
+        this.cache = cache;
+        this.promoter = promoter;
+    }
+
     // Method used in REPL
     double eval(String expr) {
         if (expr.length() == 0) {
             return NaN;
         }
-        List<String> tokens = tokenize(expr);
-        List<String> postfix = infix2Postfix(tokens);
-        return evalPostfix(postfix);
+        CompiledExpression ce = cache.get(expr, this::compileOptimized);
+        long start = System.nanoTime();
+        double result = promoter.eval(ce);
+        metrics.evalPostfix.record(System.nanoTime() - start);
+        return result;
     }
 
-    // ------  Evaluate RPN expression -------------------
+    // Turn expression into a reusable program (not cached)
+    Program compile(String expr) {
+        Status status = new Status();
+        Program program = tryCompile(expr, status);
+        if (program == null) {
+            throw status.exception();
+        }
+        return program;
+    }
 
-    public double evalPostfix(List<String> postfix) {
-        Stack<String> stack = new Stack<>();
-
-        for (String token : postfix) {
-            if (OPERATORS.contains(token)) {
-                double d1 = Double.parseDouble(stack.pop());
-                double d2 = Double.parseDouble(stack.pop());
-                double res = applyOperator(token, d1, d2);
-                stack.push(String.valueOf(res));
-            } else { // Is number.
-                stack.push(token);
-            }
+    // As compile() but errors go to status (and null is returned)
+    Program tryCompile(String expr, Status status) {
+        long start = System.nanoTime();
+        TokenBuffer tokens = new TokenBuffer(expr.length() / 2 + 1);
+        if (!Lexer.scan(expr, tokens, null, status)) {
+            return null;
+        }
+        long scanned = System.nanoTime();
+        metrics.tokenize.record(scanned - start);
+        int[] postfix = Parser.toPostfix(tokens, status);
+        if (postfix == null) {
+            return null;
         }
+        metrics.infix2Postfix.record(System.nanoTime() - scanned);
+        return Program.of(tokens, postfix);
+    }
 
-        // Convert last remaining token on stack to double.
-        return Double.parseDouble(stack.pop());
+    // As compile() followed by the Optimizer, used by eval()
+    Program compileOptimized(String expr) {
+        return optimize(compile(expr));
     }
 
+    Program tryCompileOptimized(String expr, Status status) {
+        Program program = tryCompile(expr, status);
+        return program == null ? null : optimize(program);
+    }
 
-    double applyOperator(String op, double d1, double d2) {
-        switch (op) {
-            case "+":
-                return d1 + d2;
-            case "-":
-                return d2 - d1;
-            case "*":
-                return d1 * d2;
-            case "/":
-                if (d1 == 0) {
-                    throw new IllegalArgumentException(DIV_BY_ZERO);
-                }
-                return d2 / d1;
-            case "^":
-                return pow(d2, d1);
-        }
-        throw new RuntimeException(OP_NOT_FOUND);
+    private Program optimize(Program program) {
+        long start = System.nanoTime();
+        Program optimized = optimizer.optimize(program);
+        metrics.optimize.record(System.nanoTime() - start);
+        return optimized;
     }
 
-    // ------- Infix 2 Postfix ------------------------
+    // Compile an expression with variables, e.g. compile("x^2 + 3*x", "x").
+    // Variable names are letters, digits and _ (not first), and any other
+    // name is an error. Not cached, but optimized.
+    Formula compile(String expr, String... variables) {
+        TokenBuffer tokens = new TokenBuffer(expr.length() / 2 + 1);
+        Lexer.scan(expr, tokens, variables);
+        Program program = Program.of(tokens, Parser.toPostfix(tokens));
+        return new Formula(optimizer.optimize(program), variables);
+    }
 
-    public List<String> infix2Postfix(List<String> tokens) {
-        Stack<String> stack = new Stack<>();
-        List<String> postfix = new ArrayList<>();
+    ExpressionCache getCache() {
+        return cache;
+    }
 
-        for (String token : tokens) {
-            if (OPERATORS.contains(token) || "()".contains(token)) {
-                addToStack(token, stack, postfix);
-            } else { // Is number.
-                postfix.add(token);
-            }
-        }
-        // Transfer remaining tokens on stack to postfix.
-        while (!stack.isEmpty()) {
-            postfix.add(stack.pop());
-        }
+    Optimizer getOptimizer() {
+        return optimizer;
+    }
 
-        return postfix;
+    Promoter getPromoter() {
+        return promoter;
     }
 
-    private void addToStack(String token, Stack<String> stack, List<String> postfix) {
-        if (shouldBeginPopStack(token, stack)) {
+    CalcMetrics getMetrics() {
+        return metrics;
+    }
 
-            popStack(token, stack, postfix);
+    // As eval but errors are returned, not thrown, with the offset in
+    // expr where they are. Invalid input costs about as much as valid
+    // input, no exception is created on the way.
+    Result evalResult(String expr) {
+        if (expr.length() == 0) {
+            return Result.of(NaN);
+        }
+        Status status = new Status();
+        try {
+            CompiledExpression ce = cache.get(expr, e -> tryCompileOptimized(e, status));
+            if (ce == null) {
+                return Result.error(status);
+            }
+            long start = System.nanoTime();
+            double result = promoter.eval(ce, status);
+            metrics.evalPostfix.record(System.nanoTime() - start);
+            return status.isError() ? Result.error(status) : Result.of(result);
+        } catch (RuntimeException e) {
+            // Registered functions may still throw
+            return Result.error(ErrorCode.of(e));
+        }
+    }
 
-        } else if (token.equals(")")) {
+    // As evalResult with decimal arithmetic rounded to mc, for exact
+    // results (see DecimalEvaluator). Uses the same compiled programs.
+    Result evalResult(String expr, MathContext mc) {
+        if (expr.length() == 0) {
+            return Result.of(NaN);
+        }
+        Status status = new Status();
+        try {
+            CompiledExpression ce = cache.get(expr, e -> tryCompileOptimized(e, status));
+            if (ce == null) {
+                return Result.error(status);
+            }
+            return DecimalEvaluator.run(ce.program(), NO_VARIABLES, mc);
+        } catch (RuntimeException e) {
+            return Result.error(ErrorCode.of(e));
+        }
+    }
 
-            closeParenthesis(stack, postfix);
-            // Don't push right parenthesis to stack.
-            return;
+    // As evalResult for an expression read from in, that may be too big
+    // for a String. Memory grows with nesting and not with length (see
+    // StreamEvaluator). Not cached or optimized.
+    Result evalResult(Reader in) throws IOException {
+        try {
+            return new StreamEvaluator(in).run();
+        } catch (RuntimeException e) {
+            return Result.error(ErrorCode.of(e));
         }
+    }
+
+    // As above, the expression is ASCII
+    Result evalResult(InputStream in) throws IOException {
+        return evalResult(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    }
 
-        // Add new token to stack.
-        stack.push(token);
+    // ------  Batch evaluation -------------------
+    // All use fork-join, results are in input order and errors do not
+    // abort the batch.
+
+    List<Result> evalAll(List<String> exprs) {
+        String[] in = exprs.toArray(new String[0]);
+        double[] values = new double[in.length];
+        ErrorCode[] errors = new ErrorCode[in.length];
+        evalAll(in, values, errors);
+        List<Result> results = new ArrayList<>(in.length);
+        for (int i = 0; i < in.length; i++) {
+            results.add(errors[i] == ErrorCode.NONE ? Result.of(values[i]) : Result.error(errors[i]));
+        }
+        return results;
     }
 
-    private boolean shouldBeginPopStack(String token, Stack<String> stack) {
-        boolean stackNotEmpty = !stack.isEmpty();
-        boolean tokenIsOperator = OPERATORS.contains(token);
-        boolean stackIsOperator = stackNotEmpty && OPERATORS.contains(stack.peek());
+    // Lazy, evaluated in parallel (on the common fork-join pool) when consumed
+    Stream<Result> evalAll(Stream<String> exprs) {
+        return exprs.parallel().map(this::evalResult);
+    }
 
-        return stackNotEmpty && tokenIsOperator && stackIsOperator;
+    // Errors (may be null) get the error code, the value is then NaN
+    double[] evalAll(String[] exprs, ErrorCode[] errors) {
+        double[] results = new double[exprs.length];
+        evalAll(exprs, results, errors);
+        return results;
     }
 
-    private void popStack(String token, Stack<String> stack, List<String> postfix) {
-        // While there is something to pop.
-        while (shouldPop(stack, token)) {
-            // Remove from stack and add to postfix.
-            String stackOp = stack.pop();
-            postfix.add(stackOp);
+    void evalAll(String[] exprs, double[] results, ErrorCode[] errors) {
+        if (results.length < exprs.length || (errors != null && errors.length < exprs.length)) {
+            throw new IllegalArgumentException("Result arrays too short");
         }
+        ForkJoinPool.commonPool().invoke(new BatchTask(this, exprs, results, errors, 0, exprs.length));
     }
 
-    private boolean shouldPop(Stack<String> stack, String token) {
-        boolean notEmpty = !stack.isEmpty();
-        boolean leftAssociative = getAssociativity(token) == Assoc.LEFT;
-        boolean higherOrEqualPrecedence = notEmpty && getPrecedence(stack.peek()) >= getPrecedence(token);
+    // ------  Evaluate RPN expression -------------------
 
-        return notEmpty && leftAssociative && higherOrEqualPrecedence;
+    public double evalPostfix(List<String> postfix) {
+        return Program.of(postfix).run();
     }
 
-    private void closeParenthesis(Stack<String> stack, List<String> postfix) {
-        // Loop until opening parenthesis or end of stack.
-        while (!stack.isEmpty() && !stack.peek().equals("(")) {
-            String popped = stack.pop();
-            // Don't add parenthesis to postfix.
-            if (!"()".contains(popped)) {
-                postfix.add(popped);
-            }
+    double applyOperator(String op, double d1, double d2) {
+        int code = Token.code(op);
+        if (!Operators.isBinary(code)) {
+            throw new RuntimeException(OP_NOT_FOUND);
         }
-        // Remove left parenthesis.
-        stack.pop();
+        return Operators.apply(code, d2, d1);
     }
 
+    // Dispatch on opcode (a Token code), d1 is the right operand
+    static double applyOperator(int op, double d1, double d2) {
+        switch (op) {
+            case Token.ADD:
+                return d1 + d2;
+            case Token.SUB:
+                return d2 - d1;
+            case Token.MUL:
+                return d1 * d2;
+            case Token.DIV:
+                if (d1 == 0) {
+                    throw new IllegalArgumentException(DIV_BY_ZERO);
+                }
+                return d2 / d1;
+            case Token.POW:
+                return pow(d2, d1);
+        }
+        throw new RuntimeException(OP_NOT_FOUND);
+    }
 
-    int getPrecedence(String op) {
-        if ("+-".contains(op)) {
-            return 2;
-        } else if ("*/".contains(op)) {
-            return 3;
-        } else if ("^".contains(op)) {
-            return 4;
-        } else {
-            throw new RuntimeException(OP_NOT_FOUND);
+    // ------- Infix 2 Postfix ------------------------
+
+    public List<String> infix2Postfix(List<String> tokens) {
+        TokenBuffer buf = new TokenBuffer(tokens.size());
+        for (String token : tokens) {
+            int code = Token.code(token);
+            buf.add(code == Token.NONE ? Token.NUMBER : code, 0, 0, 0);
+        }
+        List<String> postfix = new ArrayList<>(tokens.size());
+        for (int i : Parser.toPostfix(buf)) {
+            postfix.add(tokens.get(i));
         }
+        return postfix;
+    }
+
+    int getPrecedence(String op) {
+        return Operators.precedence(operatorCode(op));
     }
 
     Assoc getAssociativity(String op) {
-        if ("+-*/".contains(op)) {
-            return Assoc.LEFT;
-        } else if ("^".contains(op)) {
-            return Assoc.RIGHT;
-        } else {
+        return Operators.isRightAssociative(operatorCode(op)) ? Assoc.RIGHT : Assoc.LEFT;
+    }
+
+    private int operatorCode(String op) {
+        int code = Token.code(op);
+        if (!Operators.isBinary(code) && !Operators.isPrefix(code)) {
             throw new RuntimeException(OP_NOT_FOUND);
         }
+        return code;
     }
 
     enum Assoc {
@@ -183,45 +311,7 @@ class Calculator {
     // ---------- Tokenize -----------------------
 
     public List<String> tokenize(String expr) {
-        // Filtrate anything that is not a digit or an operator or a parenthesis or a comma or a period.
-        expr = expr.replaceAll("[^-+*/^() ,.[0-9]]*", "");
-
-        // Split at every operand and parenthesis.
-        List<String> tokens = new ArrayList<>(Arrays.asList(expr.split("(?<=[-+*/()^ ])|(?=[-+*/()^ ])")));
-
-        // Remove tokens containing only a space.
-        tokens.removeIf(" "::equals);
-        for(int i = 0; i < tokens.size(); i++) {
-            // Replace all periods and commas with a single period.
-            tokens.set(i, tokens.get(i).replaceAll("(\\.+)|(,+)", "."));
-        }
-
-        // Check for errors in input.
-        validateInput(tokens);
-
-        return tokens;
-    }
-
-    private void validateInput(List<String> filteredTokens) {
-        // Count stuff.
-        int operatorCount = 0, operandCount = 0, openParenCount = 0, closeParenCount = 0;
-        for (String token : filteredTokens) {
-            if (OPERATORS.contains(token)) {
-                operatorCount++;
-            } else if (token.equals("(")) {
-                openParenCount++;
-            } else if (token.equals(")")) {
-                closeParenCount++;
-            } else {
-                operandCount++;
-            }
-        }
-        if (operatorCount >= operandCount) {
-            throw new IllegalArgumentException(MISSING_OPERAND);
-        }
-        if (operandCount > operatorCount + 1 ||
-                openParenCount != closeParenCount) {
-            throw new IllegalArgumentException(MISSING_OPERATOR);
-        }
+        // Single pass scanner, also checks for errors in input.
+        return Lexer.tokenize(expr);
     }
 }
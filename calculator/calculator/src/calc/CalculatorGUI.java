@@ -1,9 +1,11 @@
 package calc;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
@@ -13,17 +15,35 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
 /*
      A graphical user interface for the Calculator
 
      NOTE: It's also possible to ude FXML markup to define the GUI
 
-      **** NOTHING TO DO HERE ****
+     The result is shown live, below the text, as it's typed. It's computed
+     on a worker thread (an IncrementalParser, only the edited part is
+     parsed again) so typing never waits for it. Each edit gets a new
+     generation, work for an older one is cancelled and its result dropped.
  */
 public class CalculatorGUI extends Application {
 
     final Calculator calculator = new Calculator();
 
+    // Live results, the parser is only used on the worker
+    private final IncrementalParser live = new IncrementalParser();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "calc-live");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong generation = new AtomicLong();
+    private Future<?> pending;      // Used on the FX thread only
+
     @Override
     public void start(Stage stage) throws Exception {
 
@@ -41,6 +61,11 @@ public class CalculatorGUI extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        worker.shutdownNow();
+    }
+
     Pane createButtons() {
         GridPane p = new GridPane();
         String labels = "123+C" + "456-^" + "789* " + "0()/=";
@@ -63,6 +88,7 @@ public class CalculatorGUI extends Application {
     }
 
     private TextField t;
+    private Label result;
 
     Pane createDisplayPane() {
         VBox v = new VBox();
@@ -70,10 +96,32 @@ public class CalculatorGUI extends Application {
         t = new TextField();
         t.setPrefColumnCount(12);
         t.setFont(Font.font("Verdana", 16));
-        v.getChildren().add(t);
+        t.textProperty().addListener((obs, old, text) -> liveResult(text));
+        result = new Label();
+        result.setFont(Font.font("Verdana", 12));
+        v.getChildren().addAll(t, result);
         return v;
     }
 
+    // On the FX thread, for every edit
+    private void liveResult(String text) {
+        long gen = generation.incrementAndGet();
+        if (pending != null) {
+            pending.cancel(false);   // Not started yet, else it sees the new generation
+        }
+        pending = worker.submit(() -> {
+            Result r = live.eval(text, () -> generation.get() != gen);
+            if (r != null) {
+                String shown = text.isEmpty() ? "" : r.toString();
+                Platform.runLater(() -> {
+                    if (generation.get() == gen) {
+                        result.setText(shown);
+                    }
+                });
+            }
+        });
+    }
+
     void buttonHandler(MouseEvent evt) {
         String text = ((Button) evt.getSource()).getText();
         switch (text) {
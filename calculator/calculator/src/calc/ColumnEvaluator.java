@@ -0,0 +1,149 @@
+package calc;
+
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import static calc.Calculator.DIV_BY_ZERO;
+
+/*
+ *   Evaluates a Program over columns of variable values
+ *
+ *   Rows are taken a block at a time. Each opcode is applied to the whole
+ *   block before the next one, so the dispatch cost is per block and the
+ *   inner loops are plain array arithmetic. Every row gets exactly the
+ *   same operations in the same order as Program.run, so results are
+ *   equal to evaluating row by row. Temporaries are blocks above the
+ *   stack.
+ *
+ *   The loops for + - * / ^ are a Kernel. If the Vector API is available
+ *   (VectorKernel, compiled from src-vector with --add-modules
+ *   jdk.incubator.vector) it is used, else the scalar loops below.
+ *   -Dcalc.vector=false forces the scalar kernel.
+ */
+final class ColumnEvaluator {
+
+    final static int BLOCK = 256;
+
+    // Applies op to n values: s[left..] = s[left..] op s[right..]
+    interface Kernel {
+        void apply(int op, double[] s, int left, int right, int n);
+    }
+
+    final static Kernel SCALAR = ColumnEvaluator::apply;
+    final static Kernel DEFAULT = loadKernel();
+
+    private ColumnEvaluator() {
+    }
+
+    private static Kernel loadKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("calc.vector", "true"))) {
+            return SCALAR;
+        }
+        try {
+            return (Kernel) Class.forName("calc.VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR;  // Not compiled or module not added
+        }
+    }
+
+    static boolean isVectorized() {
+        return DEFAULT != SCALAR;
+    }
+
+    // Scratch space needed by run()
+    static double[] scratch(Program program) {
+        return new double[program.frameSize() * BLOCK];
+    }
+
+    // Rows [from, to) of columns (one per variable) into out
+    static void run(Program program, double[][] columns, double[] out, int from, int to, double[] scratch) {
+        run(program, columns, out, from, to, scratch, DEFAULT);
+    }
+
+    static void run(Program program, double[][] columns, double[] out, int from, int to, double[] scratch,
+                    Kernel kernel) {
+        for (int base = from; base < to; base += BLOCK) {
+            int n = Math.min(BLOCK, to - base);
+            int sp = 0;   // Stack of blocks in scratch
+            for (int i = 0; i < program.size(); i++) {
+                int op = program.op(i);
+                if (op == Token.NUMBER) {
+                    Arrays.fill(scratch, sp * BLOCK, sp * BLOCK + n, program.value(i));
+                    sp++;
+                } else if (op == Token.VARIABLE) {
+                    System.arraycopy(columns[(int) program.value(i)], base, scratch, sp * BLOCK, n);
+                    sp++;
+                } else if (op == Token.LOAD) {
+                    int temp = program.maxDepth() + (int) program.value(i);
+                    System.arraycopy(scratch, temp * BLOCK, scratch, sp * BLOCK, n);
+                    sp++;
+                } else if (op == Token.STORE) {
+                    int temp = program.maxDepth() + (int) program.value(i);
+                    System.arraycopy(scratch, (sp - 1) * BLOCK, scratch, temp * BLOCK, n);
+                } else if (op <= Token.POW) {
+                    sp--;
+                    kernel.apply(op, scratch, (sp - 1) * BLOCK, sp * BLOCK, n);
+                } else if (Operators.arity(op) == 1) {
+                    applyUnary(op, scratch, (sp - 1) * BLOCK, n);
+                } else {
+                    sp--;
+                    applyBinary(op, scratch, (sp - 1) * BLOCK, sp * BLOCK, n);
+                }
+            }
+            System.arraycopy(scratch, 0, out, base, n);
+        }
+    }
+
+    // Other operators and functions, from the Operators tables
+
+    private static void applyUnary(int op, double[] s, int at, int n) {
+        DoubleUnaryOperator f = Operators.unary(op);
+        for (int k = 0; k < n; k++) {
+            s[at + k] = f.applyAsDouble(s[at + k]);
+        }
+    }
+
+    private static void applyBinary(int op, double[] s, int left, int right, int n) {
+        DoubleBinaryOperator f = Operators.binary(op);
+        for (int k = 0; k < n; k++) {
+            s[left + k] = f.applyAsDouble(s[left + k], s[right + k]);
+        }
+    }
+
+    // The scalar kernel, as Calculator.applyOperator
+    static void apply(int op, double[] s, int left, int right, int n) {
+        switch (op) {
+            case Token.ADD:
+                for (int k = 0; k < n; k++) {
+                    s[left + k] = s[right + k] + s[left + k];
+                }
+                break;
+            case Token.SUB:
+                for (int k = 0; k < n; k++) {
+                    s[left + k] = s[left + k] - s[right + k];
+                }
+                break;
+            case Token.MUL:
+                for (int k = 0; k < n; k++) {
+                    s[left + k] = s[right + k] * s[left + k];
+                }
+                break;
+            case Token.DIV:
+                for (int k = 0; k < n; k++) {
+                    if (s[right + k] == 0) {
+                        throw new IllegalArgumentException(DIV_BY_ZERO);
+                    }
+                    s[left + k] = s[left + k] / s[right + k];
+                }
+                break;
+            case Token.POW:
+                for (int k = 0; k < n; k++) {
+                    s[left + k] = Math.pow(s[left + k], s[right + k]);
+                }
+                break;
+            default:
+                throw new RuntimeException(Calculator.OP_NOT_FOUND);
+        }
+    }
+}
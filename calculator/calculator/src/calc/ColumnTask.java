@@ -0,0 +1,41 @@
+package calc;
+
+import java.util.concurrent.RecursiveAction;
+
+/*
+ *   Evaluates a range of rows with fork-join, see ColumnEvaluator
+ *
+ *   The range is split in halves until it is at most CHUNK rows. Each
+ *   row is written to its own index in out.
+ */
+final class ColumnTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    final static int CHUNK = 16 * 1024;
+
+    private final Program program;
+    private final double[][] columns;
+    private final double[] out;
+    private final int from;
+    private final int to;
+
+    ColumnTask(Program program, double[][] columns, double[] out, int from, int to) {
+        this.program = program;
+        this.columns = columns;
+        this.out = out;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= CHUNK) {
+            ColumnEvaluator.run(program, columns, out, from, to, ColumnEvaluator.scratch(program));
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new ColumnTask(program, columns, out, from, mid),
+                    new ColumnTask(program, columns, out, mid, to));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package calc;
+
+import java.lang.invoke.MethodHandle;
+
+/*
+ *   A cache entry: expression text, its Program and, once the expression
+ *   is hot, a MethodHandle that computes the same value.
+ *
+ *   The hit counter and the tick of last use are only heuristics, lost
+ *   updates between threads are harmless. Both are written only while
+ *   they change, so threads sharing a hot entry just read it.
+ */
+final class CompiledExpression {
+
+    private final String expr;
+    private final Program program;
+    private int hits;
+    private long used;      // Tick of last use, see ExpressionCache
+    private volatile MethodHandle handle;
+
+    CompiledExpression(String expr, Program program) {
+        this.expr = expr;
+        this.program = program;
+    }
+
+    String expr() {
+        return expr;
+    }
+
+    Program program() {
+        return program;
+    }
+
+    // Count a hit, returns new count
+    int hit() {
+        return ++hits;
+    }
+
+    int hits() {
+        return hits;
+    }
+
+    // Mark as used at tick
+    void touch(long tick) {
+        if (used != tick) {
+            used = tick;
+        }
+    }
+
+    long used() {
+        return used;
+    }
+
+    MethodHandle handle() {
+        return handle;
+    }
+
+    void setHandle(MethodHandle handle) {
+        this.handle = handle;
+    }
+}
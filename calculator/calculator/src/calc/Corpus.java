@@ -0,0 +1,93 @@
+package calc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ *   Generated expression corpora for benchmarks and load tests
+ *
+ *   Same seed gives the same expressions, so runs can be compared.
+ *   All expressions are valid and evaluate to finite values.
+ */
+enum Corpus {
+    SHORT,         // A few operators, e.g. "3 * (4 + 2)"
+    NESTED,        // Deeply nested parentheses
+    FLAT,          // Long, no parentheses
+    POWER;         // Chains of right associative ^
+
+    final static int SIZE = 64;
+    private final static String OPS = "+-*/";
+
+    // SIZE expressions of this kind
+    List<String> expressions() {
+        Random rand = new Random(ordinal() * 31L + 17);
+        List<String> exprs = new ArrayList<>(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            exprs.add(generate(rand));
+        }
+        return exprs;
+    }
+
+    String generate(Random rand) {
+        switch (this) {
+            case SHORT:
+                return flat(rand, 2 + rand.nextInt(4), true);
+            case NESTED:
+                return nested(rand, 50 + rand.nextInt(50));
+            case FLAT:
+                return flat(rand, 500 + rand.nextInt(500), false);
+            case POWER:
+                return power(rand, 10 + rand.nextInt(10));
+        }
+        throw new IllegalStateException();
+    }
+
+    private static String flat(Random rand, int ops, boolean parens) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(operand(rand));
+        for (int i = 0; i < ops; i++) {
+            sb.append(' ').append(OPS.charAt(rand.nextInt(OPS.length()))).append(' ');
+            if (parens && rand.nextInt(3) == 0) {
+                sb.append('(').append(operand(rand)).append(" + ").append(operand(rand)).append(')');
+            } else {
+                sb.append(operand(rand));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String nested(Random rand, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append('(');
+        }
+        sb.append(operand(rand));
+        for (int i = 0; i < depth; i++) {
+            sb.append(' ').append(OPS.charAt(rand.nextInt(3))).append(' ').append(operand(rand)).append(')');
+        }
+        return sb.toString();
+    }
+
+    // E.g. 1.01 ^ 2 ^ 1 ^ 1 * 3 ^ 2, stays finite
+    private static String power(Random rand, int terms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                sb.append(i % 2 == 0 ? " + " : " * ");
+            }
+            sb.append("1.0").append(1 + rand.nextInt(9)).append(" ^ ").append(1 + rand.nextInt(3));
+            int chain = 1 + rand.nextInt(4);
+            for (int j = 0; j < chain; j++) {
+                sb.append(" ^ 1");
+            }
+        }
+        return sb.toString();
+    }
+
+    // Positive, never 0 so / is safe
+    private static String operand(Random rand) {
+        int n = 1 + rand.nextInt(99);
+        return rand.nextInt(4) == 0 ? n + "." + rand.nextInt(10) : String.valueOf(n);
+    }
+}
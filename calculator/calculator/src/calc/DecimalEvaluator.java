@@ -0,0 +1,276 @@
+package calc;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/*
+ *   Evaluates a Program with decimal arithmetic (BigDecimal)
+ *
+ *   For exact results, e.g. 0.1 + 0.2 is 0.3 and not 0.30000000000000004.
+ *   The program is the one compiled for doubles, before constant folding
+ *   (see Program.unfolded()). A number is the shortest decimal giving its
+ *   double, so numbers written with more than 15 significant digits may
+ *   be rounded.
+ *
+ *   Numbers and results are rounded to the MathContext. With precision 0
+ *   (unlimited) a result without a finite decimal (like 1 / 3 or sqrt(2))
+ *   is an error. + - * /, integer powers, sqrt, abs, max and min are
+ *   decimal, other functions and other powers are done as doubles.
+ *
+ *   Fast path: with enough precision (or unlimited) the program is first
+ *   run as doubles, checking that every value is small (see isSmall) and
+ *   every operation exact (by fma and TwoSum). Then the double is the
+ *   decimal result and no BigDecimal is made. Else the program is run
+ *   again with BigDecimal.
+ */
+final class DecimalEvaluator {
+
+    // Precision needed for the fast path, small values have at most 16 digits
+    final static int FAST_PRECISION = 16;
+    // Largest integer power done exactly on the fast path
+    final static int MAX_FAST_POWER = 64;
+    // Largest integer power with unlimited precision, the digits grow with it
+    final static int MAX_UNLIMITED_POWER = 1000;
+
+    private final static int SQRT = Operators.code("sqrt");
+    private final static int ABS = Operators.code("abs");
+    private final static int MAX = Operators.code("max");
+    private final static int MIN = Operators.code("min");
+
+    private DecimalEvaluator() {
+    }
+
+    // Value of program (with variables by index) rounded to mc. Results
+    // from the fast path are values only, others also have the decimal.
+    static Result run(Program program, double[] variables, MathContext mc) {
+        Program unfolded = program.unfolded();
+        if (mc.getPrecision() == 0 || mc.getPrecision() >= FAST_PRECISION) {
+            double exact = runExact(unfolded, variables);
+            if (!Double.isNaN(exact)) {
+                return Result.exact(exact);
+            }
+        }
+        Status status = new Status();
+        BigDecimal result = runDecimal(unfolded, variables, mc, status);
+        return result == null ? Result.error(status) : Result.of(result.stripTrailingZeros());
+    }
+
+    // ---------- Fast path, doubles -----------------------
+
+    // Exact value of program, NaN if some value is not small or some
+    // operation not exact
+    static double runExact(Program program, double[] variables) {
+        double[] stack = program.scratch();
+        int temps = program.maxDepth();
+        int sp = 0;
+        for (int i = 0; i < program.size(); i++) {
+            int op = program.op(i);
+            double value;
+            if (op == Token.NUMBER) {
+                value = program.value(i);
+            } else if (op == Token.VARIABLE) {
+                value = variables[(int) program.value(i)];
+            } else if (op == Token.LOAD) {
+                stack[sp++] = stack[temps + (int) program.value(i)];
+                continue;
+            } else if (op == Token.STORE) {
+                stack[temps + (int) program.value(i)] = stack[sp - 1];
+                continue;
+            } else if (Operators.arity(op) == 1) {
+                value = exact(op, stack[--sp]);
+            } else {
+                double right = stack[--sp];
+                value = exact(op, stack[--sp], right);
+            }
+            if (!isSmall(value)) {
+                return Double.NaN;
+            }
+            stack[sp++] = value;
+        }
+        return stack[0];
+    }
+
+    // An integer below 2^53 or a multiple of 1/256 below 2^20. The decimal
+    // of these has at most 16 digits (15 if not an integer) and it is the
+    // shortest decimal for the double, so it's the number as written. NaN
+    // and infinities are not small.
+    static boolean isSmall(double x) {
+        double a = Math.abs(x);
+        return a < 0x1p53 && (a == Math.rint(a) || (a < 0x1p20 && a * 256 == Math.rint(a * 256)));
+    }
+
+    // Exact result or NaN. Operands are small, so the rounding errors
+    // found with fma are never lost to underflow.
+    private static double exact(int op, double x) {
+        if (op == Token.NEG) {
+            return -x;
+        }
+        if (op == ABS) {
+            return Math.abs(x);
+        }
+        if (op == SQRT) {
+            double root = Math.sqrt(x);
+            return Math.fma(root, root, -x) == 0 ? root : Double.NaN;
+        }
+        return Double.NaN;
+    }
+
+    private static double exact(int op, double left, double right) {
+        switch (op) {
+            case Token.ADD:
+                return sum(left, right);
+            case Token.SUB:
+                return sum(left, -right);
+            case Token.MUL:
+                return product(left, right);
+            case Token.DIV:
+                if (right == 0) {
+                    return Double.NaN;   // The decimal run reports it
+                }
+                double quotient = left / right;
+                return Math.fma(quotient, right, -left) == 0 ? quotient : Double.NaN;
+            case Token.POW:
+                return power(left, right);
+            default:
+                if (op == MAX) {
+                    return Math.max(left, right);
+                }
+                if (op == MIN) {
+                    return Math.min(left, right);
+                }
+                return Double.NaN;
+        }
+    }
+
+    // TwoSum, the rounding error of a + b is exact
+    private static double sum(double a, double b) {
+        double s = a + b;
+        double bb = s - a;
+        double error = (a - (s - bb)) + (b - bb);
+        return error == 0 ? s : Double.NaN;
+    }
+
+    private static double product(double a, double b) {
+        double p = a * b;
+        return Math.fma(a, b, -p) == 0 ? p : Double.NaN;
+    }
+
+    // Integer powers only, by multiplication
+    private static double power(double base, double exponent) {
+        if (exponent != Math.rint(exponent) || Math.abs(exponent) > MAX_FAST_POWER) {
+            return Double.NaN;
+        }
+        double p = 1;
+        for (int i = 0; i < Math.abs(exponent) && isSmall(p); i++) {
+            p = product(p, base);
+        }
+        if (exponent < 0) {
+            // 1 / p may be small when p is not (0.5 ^ 9), but p was not exact
+            return p == 0 || !isSmall(p) ? Double.NaN : exact(Token.DIV, 1, p);
+        }
+        return p;
+    }
+
+    // ---------- BigDecimal -----------------------
+
+    // Value of program, null on error (in status)
+    static BigDecimal runDecimal(Program program, double[] variables, MathContext mc, Status status) {
+        BigDecimal[] stack = new BigDecimal[program.frameSize()];
+        int temps = program.maxDepth();
+        int sp = 0;
+        for (int i = 0; i < program.size(); i++) {
+            int op = program.op(i);
+            BigDecimal value;
+            if (op == Token.NUMBER) {
+                value = decimal(program.value(i), mc);
+            } else if (op == Token.VARIABLE) {
+                value = decimal(variables[(int) program.value(i)], mc);
+            } else if (op == Token.LOAD) {
+                stack[sp++] = stack[temps + (int) program.value(i)];
+                continue;
+            } else if (op == Token.STORE) {
+                stack[temps + (int) program.value(i)] = stack[sp - 1];
+                continue;
+            } else if (op == Token.DIV && stack[sp - 1].signum() == 0) {
+                status.fail(ErrorCode.DIV_BY_ZERO, program.offset(i));
+                return null;
+            } else {
+                try {
+                    if (Operators.arity(op) == 1) {
+                        value = apply(op, stack[--sp], mc);
+                    } else {
+                        BigDecimal right = stack[--sp];
+                        value = apply(op, stack[--sp], right, mc);
+                    }
+                } catch (ArithmeticException e) {
+                    value = null;    // No finite decimal
+                }
+            }
+            if (value == null) {
+                status.fail(ErrorCode.NO_DECIMAL, program.offset(i));
+                return null;
+            }
+            stack[sp++] = value;
+        }
+        return stack[0];
+    }
+
+    // Decimal for a double, null if not finite
+    private static BigDecimal decimal(double d, MathContext mc) {
+        return Double.isFinite(d) ? BigDecimal.valueOf(d).round(mc) : null;
+    }
+
+    private static BigDecimal apply(int op, BigDecimal x, MathContext mc) {
+        if (op == Token.NEG) {
+            return x.negate(mc);
+        }
+        if (op == ABS) {
+            return x.abs(mc);
+        }
+        if (op == SQRT) {
+            return x.signum() < 0 ? null : x.sqrt(mc);
+        }
+        return decimal(Operators.apply(op, x.doubleValue()), mc);
+    }
+
+    private static BigDecimal apply(int op, BigDecimal left, BigDecimal right, MathContext mc) {
+        switch (op) {
+            case Token.ADD:
+                return left.add(right, mc);
+            case Token.SUB:
+                return left.subtract(right, mc);
+            case Token.MUL:
+                return left.multiply(right, mc);
+            case Token.DIV:
+                return left.divide(right, mc);
+            case Token.POW:
+                return power(left, right, mc);
+            default:
+                if (op == MAX) {
+                    return left.max(right);
+                }
+                if (op == MIN) {
+                    return left.min(right);
+                }
+                return decimal(Operators.apply(op, left.doubleValue(), right.doubleValue()), mc);
+        }
+    }
+
+    private static BigDecimal power(BigDecimal base, BigDecimal exponent, MathContext mc) {
+        int n;
+        try {
+            n = exponent.intValueExact();
+        } catch (ArithmeticException e) {
+            // Not an integer (or a huge one)
+            return decimal(Math.pow(base.doubleValue(), exponent.doubleValue()), mc);
+        }
+        if (mc.getPrecision() > 0) {
+            return base.pow(n, mc);
+        }
+        if (Math.abs(n) > MAX_UNLIMITED_POWER) {
+            return null;
+        }
+        // pow(n, mc) needs a precision for negative n
+        return n < 0 ? BigDecimal.ONE.divide(base.pow(-n), mc) : base.pow(n);
+    }
+}
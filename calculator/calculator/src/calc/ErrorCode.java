@@ -0,0 +1,37 @@
+package calc;
+
+/*
+ *   Errors as values, for callers that should not get exceptions
+ *   (e.g. batches where one bad line must not abort the rest)
+ */
+enum ErrorCode {
+    NONE(""),
+    DIV_BY_ZERO(Calculator.DIV_BY_ZERO),
+    MISSING_OPERAND(Calculator.MISSING_OPERAND),
+    MISSING_OPERATOR(Calculator.MISSING_OPERATOR),
+    OP_NOT_FOUND(Calculator.OP_NOT_FOUND),
+    UNKNOWN_VARIABLE(Calculator.UNKNOWN_VARIABLE),
+    BAD_NUMBER("Bad number"),
+    NO_DECIMAL(Calculator.NO_DECIMAL),
+    FAILED("Evaluation failed");       // E.g. a registered function threw
+
+    final String message;
+
+    ErrorCode(String message) {
+        this.message = message;
+    }
+
+    // Error code for an exception thrown by Calculator, FAILED for any
+    // other (so one bad item never aborts a batch)
+    static ErrorCode of(RuntimeException e) {
+        if (e instanceof NumberFormatException) {
+            return BAD_NUMBER;
+        }
+        for (ErrorCode code : values()) {
+            if (code != NONE && code.message.equals(e.getMessage())) {
+                return code;
+            }
+        }
+        return FAILED;  // Not one of ours
+    }
+}
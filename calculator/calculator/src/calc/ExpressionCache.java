@@ -0,0 +1,151 @@
+package calc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ *   A bounded LRU cache from expression text to compiled expression
+ *
+ *   The cache is limited both by number of entries and by total weight
+ *   (length of the expression plus the weight of the program), whichever
+ *   is hit first. Least recently used entries are evicted.
+ *
+ *   Shared by threads, and a hit takes no lock: the entries are in a
+ *   ConcurrentHashMap and a hit only marks its entry with the current
+ *   tick (see CompiledExpression.touch). The tick advances with every
+ *   insert, so entries used between the same two inserts are equally
+ *   recent. Inserts and evictions (misses only) take a lock. Eviction
+ *   sorts the entries by tick and goes down to 7/8 of the limits, so the
+ *   sort is done once per many inserts.
+ */
+final class ExpressionCache {
+
+    final static int DEFAULT_MAX_ENTRIES = 4096;
+    final static long DEFAULT_MAX_WEIGHT = 1 << 20;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final ConcurrentHashMap<String, CompiledExpression> map = new ConcurrentHashMap<>();
+    private volatile long tick;         // Written under lock
+    private volatile long weight;       // Written under lock
+    private final Object lock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ExpressionCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+    }
+
+    ExpressionCache(int maxEntries, long maxWeight) {
+        if (maxEntries < 0 || maxWeight < 0) {
+            throw new IllegalArgumentException("Negative cache size");
+        }
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    // Get the program for expr, compile (and cache) it if missing.
+    // Exceptions from compile are passed on and nothing is cached, if
+    // compile returns null (an error) null is returned.
+    CompiledExpression get(String expr, Function<String, Program> compile) {
+        CompiledExpression ce = map.get(expr);
+        if (ce != null) {
+            hits.increment();
+            ce.touch(tick);
+            return ce;
+        }
+        misses.increment();
+        // Compile outside the lock, two threads may race on the same
+        // expression but will produce equal programs.
+        Program program = compile.apply(expr);
+        if (program == null) {
+            return null;
+        }
+        ce = new CompiledExpression(expr, program);
+        put(expr, ce);
+        return ce;
+    }
+
+    void put(String expr, CompiledExpression ce) {
+        long w = weightOf(expr, ce);
+        if (maxEntries == 0 || w > maxWeight) {
+            return;  // Would never fit
+        }
+        synchronized (lock) {
+            ce.touch(tick++);
+            CompiledExpression old = map.put(expr, ce);
+            long total = weight + w;
+            if (old != null) {
+                total -= weightOf(expr, old);
+            }
+            weight = total;
+            if (map.size() > maxEntries || total > maxWeight) {
+                evict(ce);
+            }
+        }
+    }
+
+    // Least recently used first, never the one just put
+    private void evict(CompiledExpression added) {
+        List<CompiledExpression> entries = new ArrayList<>(map.values());
+        entries.sort(Comparator.comparingLong(CompiledExpression::used));
+        int entriesTo = maxEntries - maxEntries / 8;
+        long weightTo = maxWeight - maxWeight / 8;
+        long total = weight;
+        for (CompiledExpression ce : entries) {
+            if (map.size() <= entriesTo && total <= weightTo) {
+                break;
+            }
+            if (ce != added && map.remove(ce.expr(), ce)) {
+                total -= weightOf(ce.expr(), ce);
+                evictions.increment();
+            }
+        }
+        weight = total;
+    }
+
+    private static long weightOf(String expr, CompiledExpression ce) {
+        return expr.length() + ce.program().weight();
+    }
+
+    void clear() {
+        synchronized (lock) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    // ------- Statistics ------------------------
+
+    int size() {
+        return map.size();
+    }
+
+    long weight() {
+        return weight;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache{size=" + size() + ", weight=" + weight() +
+                ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "}";
+    }
+}
@@ -0,0 +1,183 @@
+package calc;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/*
+ *   Reads expressions one at a time from a request body
+ *
+ *   The body is either newline delimited (one expression per line) or a
+ *   JSON array of strings, e.g. ["1+2", "3*4"]. Nothing but the current
+ *   expression is kept in memory, so bodies may be of any size.
+ *   Malformed input is a BadInput, other IOExceptions are from reading.
+ */
+final class ExpressionReader {
+
+    static final class BadInput extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BadInput(String message) {
+            super(message);
+        }
+    }
+
+    private final Reader in;
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int limit;
+    private boolean json;
+    private boolean started;
+    private int count;          // Expressions read
+    private boolean done;
+
+    // json: body is known to be JSON, else it is JSON if it starts with '['
+    ExpressionReader(Reader in, boolean json) {
+        this.in = in;
+        this.json = json;
+    }
+
+    boolean isJson() {
+        return json;
+    }
+
+    // If false, the next call to next() may block on the input
+    boolean hasBuffered() {
+        return pos < limit;
+    }
+
+    // Next expression or null at end of input
+    String next() throws IOException {
+        if (!started) {
+            started = true;
+            if (json && skipWhitespace() != '[') {
+                throw new BadInput("Expected a JSON array");
+            }
+            json = peek() == '[';
+            if (json) {
+                read();
+            }
+        }
+        if (done) {
+            return null;
+        }
+        return json ? nextJson() : nextLine();
+    }
+
+    // ---------- Newline delimited -----------------------
+
+    private String nextLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c = read();
+        if (c == -1) {
+            done = true;
+            return null;
+        }
+        while (c != -1 && c != '\n') {
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+            c = read();
+        }
+        if (c == -1) {
+            done = true;
+        }
+        return sb.toString();
+    }
+
+    // ---------- JSON array of strings -----------------------
+
+    private String nextJson() throws IOException {
+        int c = skipWhitespace();
+        if (c == ']') {
+            done = true;
+            return null;
+        }
+        if (count > 0) {
+            if (c != ',') {
+                throw new BadInput("Expected , or ]");
+            }
+            read();
+            c = skipWhitespace();
+        }
+        if (c != '"') {
+            throw new BadInput("Expected a JSON string");
+        }
+        count++;
+        read();
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            c = read();
+            if (c == -1) {
+                throw new BadInput("Unterminated JSON string");
+            } else if (c == '"') {
+                return sb.toString();
+            } else if (c == '\\') {
+                sb.append(unescape(read()));
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    private char unescape(int c) throws IOException {
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 't':
+                return '\t';
+            case 'r':
+                return '\r';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw new BadInput("Bad JSON escape");
+                    }
+                    code = code * 16 + digit;
+                }
+                return (char) code;
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            default:
+                throw new BadInput("Bad JSON escape");
+        }
+    }
+
+    // Skip whitespace, returns next char without consuming it
+    private int skipWhitespace() throws IOException {
+        int c = peek();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        pos = 0;
+        limit = Math.max(n, 0);
+        return n > 0;
+    }
+}
@@ -0,0 +1,82 @@
+package calc;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ *   A compiled expression with variables, e.g. "x^2 + 3*x" in x
+ *
+ *   Made by Calculator.compile(expr, variables). Evaluate it for one set
+ *   of values or over whole columns of values, one double[] per variable
+ *   (in the order the variables were given). Immutable, may be shared.
+ */
+final class Formula {
+
+    private final Program program;
+    private final String[] variables;
+
+    Formula(Program program, String[] variables) {
+        this.program = program;
+        this.variables = variables.clone();
+    }
+
+    String[] variables() {
+        return variables.clone();
+    }
+
+    Program program() {
+        return program;
+    }
+
+    // Value for one set of variable values
+    double eval(double... values) {
+        if (values.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " values");
+        }
+        return program.run(program.scratch(), values);
+    }
+
+    // out[row] = value for columns[0][row], columns[1][row] ...
+    // Split in chunks over the common fork-join pool (if more than one).
+    void evalColumns(double[][] columns, double[] out) {
+        int rows = checkColumns(columns, out);
+        if (rows <= ColumnTask.CHUNK) {
+            ColumnEvaluator.run(program, columns, out, 0, rows, ColumnEvaluator.scratch(program));
+            return;
+        }
+        try {
+            ForkJoinPool.commonPool().invoke(new ColumnTask(program, columns, out, 0, rows));
+        } catch (RuntimeException e) {
+            // Thrown in a worker the pool rethrows a copy wrapping it,
+            // throw the original so the message is the Calculator's
+            Throwable cause = e.getCause();
+            if (cause != null && cause.getClass() == e.getClass()) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    // As above for rows [from, to), in the calling thread
+    void evalColumns(double[][] columns, double[] out, int from, int to) {
+        checkColumns(columns, out);
+        ColumnEvaluator.run(program, columns, out, from, to, ColumnEvaluator.scratch(program));
+    }
+
+    private int checkColumns(double[][] columns, double[] out) {
+        if (columns.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " columns");
+        }
+        for (double[] column : columns) {
+            if (column.length < out.length) {
+                throw new IllegalArgumentException("Column shorter than output");
+            }
+        }
+        return out.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(variables) + " -> " + program;
+    }
+}
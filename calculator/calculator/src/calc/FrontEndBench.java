@@ -0,0 +1,79 @@
+package calc;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.out;
+
+/*
+ *   Throughput of WebCalcServer vs NioCalcServer
+ *
+ *   Starts both servers on free ports and loads each with a number of
+ *   keep-alive clients posting the WebCalc form, first to warm up and
+ *   then measured. Prints requests per second for each.
+ *
+ *   Arguments: clients seconds (default 8 5)
+ */
+class FrontEndBench {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        new FrontEndBench().run(clients, seconds);
+    }
+
+    final byte[] request = RawHttpClient.formPost("/", "Expression=" + "(1%2B2)*3%5E2%2F4-5*(6%2B7)");
+
+    void run(int clients, int seconds) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.port = 0;
+        config.executor = ServerConfig.Executor.POOL;
+
+        WebCalcServer web = new WebCalcServer(config);
+        web.run();
+        double webRate = load(web.getPort(), clients, seconds);
+        web.stop();
+
+        NioCalcServer nio = new NioCalcServer(config);
+        nio.run();
+        double nioRate = load(nio.getPort(), clients, seconds);
+        nio.stop();
+
+        out.printf("%-15s %12s%n", "Server", "requests/s");
+        out.printf("%-15s %12.0f%n", "WebCalcServer", webRate);
+        out.printf("%-15s %12.0f%n", "NioCalcServer", nioRate);
+        out.printf("NIO / JDK server = %.2f (%d clients, %d s)%n", nioRate / webRate, clients, seconds);
+    }
+
+    // Warm up, then requests per second over seconds
+    double load(int port, int clients, int seconds) throws InterruptedException {
+        run(port, clients, Math.max(1, seconds / 2));
+        return run(port, clients, seconds) / seconds;
+    }
+
+    private long run(int port, int clients, int seconds) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder done = new LongAdder();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            threads[i] = new Thread(() -> {
+                try (RawHttpClient client = new RawHttpClient("localhost", port)) {
+                    while (!stop.get()) {
+                        client.send(request);
+                        done.increment();
+                    }
+                } catch (IOException e) {
+                    out.println("Client failed " + e.getMessage());
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        return done.sum();
+    }
+}
@@ -0,0 +1,106 @@
+package calc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+import static calc.Calculator.DIV_BY_ZERO;
+
+/*
+ *   Turns a Program into a tree of MethodHandles of type ()double
+ *
+ *   Constants are constant handles and every operator combines its
+ *   operand handles, so the JIT sees plain static arithmetic methods it
+ *   can inline instead of the interpreter loop. Other operators and
+ *   functions call their implementation from Operators.
+ */
+final class HandleCompiler {
+
+    // Indexed by opcode, type (left, right)double
+    private final static MethodHandle[] OPERATORS = new MethodHandle[Token.POW + 1];
+    // (DoubleUnaryOperator, double)double and (DoubleBinaryOperator, double, double)double
+    private final static MethodHandle APPLY_UNARY;
+    private final static MethodHandle APPLY_BINARY;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType type = MethodType.methodType(double.class, double.class, double.class);
+        try {
+            OPERATORS[Token.ADD] = lookup.findStatic(HandleCompiler.class, "add", type);
+            OPERATORS[Token.SUB] = lookup.findStatic(HandleCompiler.class, "sub", type);
+            OPERATORS[Token.MUL] = lookup.findStatic(HandleCompiler.class, "mul", type);
+            OPERATORS[Token.DIV] = lookup.findStatic(HandleCompiler.class, "div", type);
+            OPERATORS[Token.POW] = lookup.findStatic(HandleCompiler.class, "pow", type);
+            APPLY_UNARY = lookup.findVirtual(DoubleUnaryOperator.class, "applyAsDouble",
+                    MethodType.methodType(double.class, double.class));
+            APPLY_BINARY = lookup.findVirtual(DoubleBinaryOperator.class, "applyAsDouble", type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private HandleCompiler() {
+    }
+
+    static MethodHandle compile(Program program) {
+        MethodHandle[] stack = new MethodHandle[program.maxDepth()];
+        int sp = 0;
+        for (int i = 0; i < program.size(); i++) {
+            int op = program.op(i);
+            if (op == Token.NUMBER) {
+                stack[sp++] = MethodHandles.constant(double.class, program.value(i));
+            } else if (!Token.isOperator(op)) {
+                throw new IllegalArgumentException("Programs with variables or temporaries are not supported");
+            } else if (Operators.arity(op) == 1) {
+                MethodHandle f = APPLY_UNARY.bindTo(Operators.unary(op));
+                stack[sp - 1] = MethodHandles.collectArguments(f, 0, stack[sp - 1]);
+            } else {
+                MethodHandle right = stack[--sp];
+                MethodHandle left = stack[--sp];
+                MethodHandle f = op <= Token.POW ? OPERATORS[op] : APPLY_BINARY.bindTo(Operators.binary(op));
+                // (left, right)double -> (right)double -> ()double
+                MethodHandle mh = MethodHandles.collectArguments(f, 0, left);
+                stack[sp++] = MethodHandles.collectArguments(mh, 0, right);
+            }
+        }
+        return stack[0];
+    }
+
+    // Call a handle from compile()
+    static double invoke(MethodHandle handle) {
+        try {
+            return (double) handle.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);  // Not thrown by our handles
+        }
+    }
+
+    // ------- Operators (same as Calculator.applyOperator) --------
+
+    private static double add(double left, double right) {
+        return left + right;
+    }
+
+    private static double sub(double left, double right) {
+        return left - right;
+    }
+
+    private static double mul(double left, double right) {
+        return left * right;
+    }
+
+    private static double div(double left, double right) {
+        if (right == 0) {
+            throw new IllegalArgumentException(DIV_BY_ZERO);
+        }
+        return left / right;
+    }
+
+    private static double pow(double left, double right) {
+        return Math.pow(left, right);
+    }
+}
@@ -0,0 +1,84 @@
+package calc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *   A lock-free latency histogram
+ *
+ *   Buckets are powers of two in nanoseconds, from 64 ns up to about
+ *   8.6 s (slower goes to the last bucket). Recording is a bit count
+ *   and two LongAdder increments, safe and cheap from many threads.
+ */
+final class Histogram {
+
+    private final static int MIN_SHIFT = 6;    // First bucket <= 2^6 ns
+    private final static int MAX_SHIFT = 33;   // Last bucket <= 2^33 ns
+
+    private final LongAdder[] buckets = new LongAdder[MAX_SHIFT - MIN_SHIFT + 2];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[bucketOf(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    // Smallest bucket with upper bound >= nanos, last is +Inf
+    private int bucketOf(long nanos) {
+        if (nanos <= 1L << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(nanos - 1);
+        return Math.min(shift - MIN_SHIFT, buckets.length - 1);
+    }
+
+    long count() {
+        long n = 0;
+        for (LongAdder b : buckets) {
+            n += b.sum();
+        }
+        return n;
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    // Upper bound (in ns) of the bucket holding quantile q, approximate
+    long quantileNanos(double q) {
+        long total = count();
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < buckets.length - 1; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank && seen > 0) {
+                return 1L << (i + MIN_SHIFT);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    // Prometheus text format, cumulative buckets with bounds in seconds.
+    // labels is e.g. phase="tokenize" (may be empty).
+    void writePrometheus(StringBuilder sb, String name, String labels) {
+        String sep = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String le = i < buckets.length - 1 ? String.valueOf((1L << (i + MIN_SHIFT)) / 1e9) : "+Inf";
+            sb.append(name).append("_bucket{").append(sep).append("le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        sb.append(name).append("_sum").append(braces).append(' ').append(sumNanos() / 1e9).append('\n');
+        sb.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,229 @@
+package calc;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/*
+ *   Compiles text that is edited a little at a time, for live results
+ *
+ *   Keeps the tokens of the last text and the state of the shunting-yard
+ *   (as in Parser) before each token. After an edit, the tokens that end
+ *   before the first changed char are kept (the char after them decided
+ *   where they end), the rest of the text is scanned again and parsing
+ *   goes on from the state before the first new token. So typing at the
+ *   end only scans and parses the last token or two.
+ *
+ *   The operator stack is persistent: nodes that are never changed, each
+ *   with the one below it, so the state before a token is three ints
+ *   (postfix length, top node, nodes made). Going back to it drops the
+ *   nodes made after it, postfix only grows.
+ *
+ *   Validation is done on all tokens each time (a linear pass over ints),
+ *   only scanning and parsing are incremental. Not thread-safe, one per
+ *   text field.
+ */
+final class IncrementalParser {
+
+    private String text = "";
+    private final TokenBuffer tokens = new TokenBuffer();
+    private int reused;          // Tokens kept by the last update
+
+    // Postfix, indexes into tokens
+    private int[] postfix = new int[16];
+    private int len;
+
+    // Operator stack nodes: token, node below (-1 at the bottom) and
+    // arguments seen (for a call's left parenthesis)
+    private int[] nodeToken = new int[16];
+    private int[] nodeBelow = new int[16];
+    private int[] nodeArgs = new int[16];
+    private int nodes;
+    private int top = -1;
+
+    // State before token i, valid for i <= parsed
+    private int[] savedLen = new int[16];
+    private int[] savedTop = new int[16];
+    private int[] savedNodes = new int[16];
+    private int parsed;
+
+    IncrementalParser() {
+        save(0);
+    }
+
+    // Result for text as Calculator.evalResult gives it (not optimized or
+    // cached), or null if cancelled
+    Result eval(String text, BooleanSupplier cancelled) {
+        Status status = new Status();
+        try {
+            Program program = update(text, cancelled, status);
+            if (text.isEmpty()) {
+                return Result.of(Double.NaN);
+            }
+            if (program == null) {
+                return status.isError() ? Result.error(status) : null;
+            }
+            double value = program.run(status);
+            return status.isError() ? Result.error(status) : Result.of(value);
+        } catch (RuntimeException e) {
+            // Registered functions may throw
+            return Result.error(ErrorCode.of(e));
+        }
+    }
+
+    // Program for text, or null if it has an error (in status) or
+    // cancelled returned true (checked now and then)
+    Program update(String text, BooleanSupplier cancelled, Status status) {
+        int changed = commonPrefix(this.text, text);
+        int keep = tokens.size();
+        while (keep > 0 && tokens.end(keep - 1) >= changed) {
+            keep--;
+        }
+        this.text = text;
+        tokens.truncate(keep);
+        reused = keep;
+        // The last kept token is parsed again, a left parenthesis looks
+        // at the token after it
+        parsed = Math.min(parsed, Math.max(keep - 1, 0));
+        if (!Lexer.scanFrom(text, keep == 0 ? 0 : tokens.end(keep - 1), tokens, status) ||
+                !Lexer.validate(tokens, text.length(), status)) {
+            return null;
+        }
+        restore(parsed);
+        for (int i = parsed; i < tokens.size(); i++) {
+            if ((i & 63) == 0 && cancelled.getAsBoolean()) {
+                return null;
+            }
+            if (!parse(i, status)) {
+                return null;
+            }
+            parsed = i + 1;
+            save(parsed);
+        }
+        int[] result = finish(status);
+        return result == null ? null : Program.of(tokens, result);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // Tokens kept (not scanned again) by the last update
+    int reused() {
+        return reused;
+    }
+
+    // ---------- Shunting-yard, a token at a time -----------------------
+
+    private boolean parse(int i, Status status) {
+        int code = tokens.code(i);
+        if (Token.isOperand(code)) {
+            emit(i);
+        } else if (code == Token.LEFT_PAREN) {
+            int args = 0;
+            if (Parser.isCall(tokens, i)) {
+                args = i + 1 < tokens.size() && tokens.code(i + 1) == Token.RIGHT_PAREN ? 0 : 1;
+            }
+            push(i, args);
+        } else if (code == Token.RIGHT_PAREN || code == Token.SEPARATOR) {
+            while (top >= 0 && tokens.code(nodeToken[top]) != Token.LEFT_PAREN) {
+                emit(pop());
+            }
+            if (top < 0 || (code == Token.SEPARATOR && !Parser.isCall(tokens, nodeToken[top]))) {
+                status.fail(ErrorCode.MISSING_OPERATOR, tokens.start(i));
+                return false;
+            }
+            int count = nodeArgs[top];
+            int paren = pop();
+            if (code == Token.SEPARATOR) {
+                push(paren, count + 1);   // Nodes don't change
+                return true;
+            }
+            if (Parser.isCall(tokens, paren)) {
+                int function = pop();
+                int arity = Operators.arity(tokens.code(function));
+                if (count != arity) {
+                    status.fail(count < arity ? ErrorCode.MISSING_OPERAND : ErrorCode.MISSING_OPERATOR,
+                            tokens.start(i));
+                    return false;
+                }
+                emit(function);
+            }
+        } else if (Operators.isFunction(code)) {
+            if (i + 1 == tokens.size() || tokens.code(i + 1) != Token.LEFT_PAREN) {
+                status.fail(ErrorCode.MISSING_OPERATOR, tokens.end(i));
+                return false;
+            }
+            push(i, 0);
+        } else if (Operators.isPrefix(code)) {
+            push(i, 0);
+        } else {
+            while (top >= 0 && Parser.shouldPop(tokens.code(nodeToken[top]), code)) {
+                emit(pop());
+            }
+            push(i, 0);
+        }
+        return true;
+    }
+
+    // Postfix with the operators left on the stack, the stack is unchanged
+    private int[] finish(Status status) {
+        int[] result = Arrays.copyOf(postfix, tokens.size());
+        int n = len;
+        for (int node = top; node >= 0; node = nodeBelow[node]) {
+            int i = nodeToken[node];
+            if (tokens.code(i) == Token.LEFT_PAREN) {
+                status.fail(ErrorCode.MISSING_OPERATOR, tokens.start(i));
+                return null;
+            }
+            result[n++] = i;
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    private void emit(int i) {
+        if (len == postfix.length) {
+            postfix = Arrays.copyOf(postfix, 2 * len);
+        }
+        postfix[len++] = i;
+    }
+
+    private void push(int i, int args) {
+        if (nodes == nodeToken.length) {
+            nodeToken = Arrays.copyOf(nodeToken, 2 * nodes);
+            nodeBelow = Arrays.copyOf(nodeBelow, 2 * nodes);
+            nodeArgs = Arrays.copyOf(nodeArgs, 2 * nodes);
+        }
+        nodeToken[nodes] = i;
+        nodeBelow[nodes] = top;
+        nodeArgs[nodes] = args;
+        top = nodes++;
+    }
+
+    private int pop() {
+        int i = nodeToken[top];
+        top = nodeBelow[top];
+        return i;
+    }
+
+    private void save(int i) {
+        if (i == savedLen.length) {
+            savedLen = Arrays.copyOf(savedLen, 2 * i);
+            savedTop = Arrays.copyOf(savedTop, 2 * i);
+            savedNodes = Arrays.copyOf(savedNodes, 2 * i);
+        }
+        savedLen[i] = len;
+        savedTop[i] = top;
+        savedNodes[i] = nodes;
+    }
+
+    private void restore(int i) {
+        len = savedLen[i];
+        top = savedTop[i];
+        nodes = savedNodes[i];
+    }
+}
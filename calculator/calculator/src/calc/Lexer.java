@@ -0,0 +1,328 @@
+package calc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *   A single pass scanner for the Calculator
+ *
+ *   Walks the input once, no regular expressions and no intermediate
+ *   strings. Accepts the same input as the old regex based tokenizer:
+ *   - Any char that is not a digit, an operator, a parenthesis, a space,
+ *     a comma or a period is ignored (i.e. "1a2" is "12")
+ *   - Spaces, operators and parentheses separate tokens
+ *   - In numbers a run of periods or a run of commas is a single period
+ *
+ *   With variables (see Calculator.compile(expr, variables)) letters are
+ *   not ignored, a name is a VARIABLE token and an unknown name is an
+ *   error.
+ *
+ *   Function names (see Operators) are tokens in both modes. Where an
+ *   operand is expected a - is unary minus (NEG).
+ *
+ *   Errors are reported in a Status with the offset of the bad token,
+ *   no exceptions are thrown (but for the throwing variants).
+ */
+final class Lexer {
+
+    // Exact powers of ten as doubles (10^22 is the largest exact one)
+    private final static double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // Mantissas below this are exact doubles
+    private final static long MAX_EXACT = 1L << 53;
+
+    private Lexer() {
+    }
+
+    // ---------- Token codes mode -----------------------
+
+    // Scan expr into buf as codes and number values, then validate.
+    static void scan(CharSequence expr, TokenBuffer buf) {
+        scan(expr, buf, (String[]) null);
+    }
+
+    // As above, names in variables are VARIABLE tokens (value is the index)
+    static void scan(CharSequence expr, TokenBuffer buf, String[] variables) {
+        Status status = new Status();
+        if (!scan(expr, buf, variables, status)) {
+            throw status.exception();
+        }
+    }
+
+    // As above without exceptions, false if there is an error (in status)
+    static boolean scan(CharSequence expr, TokenBuffer buf, String[] variables, Status status) {
+        buf.clear();
+        return scan(expr, 0, buf, true, variables, status) && validate(buf, expr.length(), status);
+    }
+
+    // Scan expr from offset from and add the tokens to buf, which has the
+    // tokens before from. Not validated. For incremental scanning.
+    static boolean scanFrom(CharSequence expr, int from, TokenBuffer buf, Status status) {
+        return scan(expr, from, buf, true, null, status);
+    }
+
+    // ---------- String mode -----------------------
+
+    // Same tokens as strings, numbers are not parsed (as before)
+    static List<String> tokenize(CharSequence expr) {
+        TokenBuffer buf = new TokenBuffer(expr.length() / 2 + 1);
+        Status status = new Status();
+        if (!scan(expr, 0, buf, false, null, status) || !validate(buf, expr.length(), status)) {
+            throw status.exception();
+        }
+
+        List<String> tokens = new ArrayList<>(buf.size());
+        for (int i = 0; i < buf.size(); i++) {
+            int code = buf.code(i);
+            if (code == Token.NUMBER) {
+                tokens.add(numberText(expr, buf.start(i), buf.end(i)));
+            } else {
+                tokens.add(Token.text(code));
+            }
+        }
+        return tokens;
+    }
+
+    // ---------- Scanning -----------------------
+
+    // False on a bad number or unknown name
+    private static boolean scan(CharSequence expr, int from, TokenBuffer buf, boolean parseNumbers,
+                                String[] variables, Status status) {
+        int n = expr.length();
+        int i = from;
+        while (i < n) {
+            char c = expr.charAt(i);
+            int code = Token.of(c);
+            if (code != Token.NONE) {
+                if (expectsOperand(buf) && Operators.prefixOf(code) != Token.NONE) {
+                    code = Operators.prefixOf(code);
+                }
+                buf.add(code, 0, i, i + 1);
+                i++;
+            } else if (isNumberChar(c)) {
+                i = scanNumber(expr, i, buf, parseNumbers, variables != null, status);
+            } else if (isNameStart(c)) {
+                i = scanName(expr, i, buf, variables, status);
+            } else {
+                i++;  // Space separates, anything else is ignored
+            }
+            if (i < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Scan a number starting at start, returns index after it (-1 if bad)
+    // Letters end the number if namesSeparate, else they are ignored
+    private static int scanNumber(CharSequence expr, int start, TokenBuffer buf, boolean parseNumbers,
+                                  boolean namesSeparate, Status status) {
+        int n = expr.length();
+        long mantissa = 0;
+        int fractionDigits = 0;
+        int points = 0;          // Runs of periods/commas
+        boolean exact = true;    // Fits the fast path
+        char prev = 0;           // Previous number char
+        int i = start;
+        for (; i < n; i++) {
+            char c = expr.charAt(i);
+            if (c == ' ' || Token.of(c) != Token.NONE || (namesSeparate && isNameStart(c))) {
+                break;
+            }
+            if (c >= '0' && c <= '9') {
+                if (mantissa < MAX_EXACT / 10) {
+                    mantissa = mantissa * 10 + (c - '0');
+                } else {
+                    exact = false;
+                }
+                if (points > 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' || c == ',') {
+                if (c != prev) {
+                    points++;  // A new run
+                }
+            } else {
+                continue;  // Ignored, does not separate
+            }
+            prev = c;
+        }
+        double value = 0;
+        if (parseNumbers) {
+            if (points > 1 || !hasDigit(expr, start, i)) {
+                // E.g. 1.2.3 or a lone period
+                status.fail(ErrorCode.BAD_NUMBER, start);
+                return -1;
+            }
+            // Exact mantissa divided by exact power of 10 is correctly rounded
+            if (exact && fractionDigits < POW10.length) {
+                value = mantissa / POW10[fractionDigits];
+            } else {
+                // Rare, let the JDK do it
+                value = Double.parseDouble(numberText(expr, start, i));
+            }
+        }
+        buf.add(Token.NUMBER, value, start, i);
+        return i;
+    }
+
+    // A variable (if any) or a function, else without variables the
+    // letters are ignored as before (digits after them are a number)
+    private static int scanName(CharSequence expr, int start, TokenBuffer buf, String[] variables, Status status) {
+        int i = start + 1;
+        while (i < expr.length() && (isNameStart(expr.charAt(i)) || isDigit(expr.charAt(i)))) {
+            i++;
+        }
+        String name = expr.subSequence(start, i).toString();
+        if (variables != null) {
+            for (int v = 0; v < variables.length; v++) {
+                if (variables[v].equals(name)) {
+                    buf.add(Token.VARIABLE, v, start, i);
+                    return i;
+                }
+            }
+        }
+        int function = Operators.function(name);
+        if (function != Token.NONE) {
+            buf.add(function, 0, start, i);
+            return i;
+        }
+        if (variables != null) {
+            status.fail(ErrorCode.UNKNOWN_VARIABLE, start);
+            return -1;
+        }
+        int end = start;
+        while (end < i && isNameStart(expr.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    // At the start, after ( or ; or after an operator
+    private static boolean expectsOperand(TokenBuffer buf) {
+        if (buf.size() == 0) {
+            return true;
+        }
+        int last = buf.code(buf.size() - 1);
+        return last == Token.LEFT_PAREN || last == Token.SEPARATOR || Operators.isBinary(last) ||
+                Operators.isPrefix(last);
+    }
+
+    private static boolean isNameStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean hasDigit(CharSequence expr, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = expr.charAt(i);
+            if (c >= '0' && c <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == ',';
+    }
+
+    // Normalized text of number in [start, end)
+    static String numberText(CharSequence expr, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        char prev = 0;
+        for (int i = start; i < end; i++) {
+            char c = expr.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            } else if (c == '.' || c == ',') {
+                if (c != prev) {
+                    sb.append('.');
+                }
+            } else {
+                continue;
+            }
+            prev = c;
+        }
+        return sb.toString();
+    }
+
+    // ---------- Validation -----------------------
+
+    // Tokens must alternate between operands and operators, the first
+    // error is reported at its token (or at the end if something is
+    // missing there). The Parser checks the number of arguments.
+    static boolean validate(TokenBuffer buf, int length, Status status) {
+        Validator v = new Validator();
+        for (int i = 0; i < buf.size(); i++) {
+            if (!v.check(buf, i, status)) {
+                return false;
+            }
+        }
+        return v.end(length, status);
+    }
+
+    // Validation a token at a time, for input that comes in parts (see
+    // StreamEvaluator). Token i may look at i + 1 and i - 2.
+    static final class Validator {
+        private boolean operand = true;   // An operand is expected next
+        private int open;                 // Open parentheses
+
+        boolean check(TokenBuffer buf, int i, Status status) {
+            int code = buf.code(i);
+            int at = buf.start(i);
+            if (Token.isOperand(code) || code == Token.LEFT_PAREN || Operators.isFunction(code) ||
+                    Operators.isPrefix(code)) {
+                if (!operand) {
+                    return status.fail(ErrorCode.MISSING_OPERATOR, at);
+                }
+                if (code == Token.LEFT_PAREN) {
+                    open++;
+                } else if (Operators.isFunction(code)) {
+                    if (i + 1 == buf.size() || buf.code(i + 1) != Token.LEFT_PAREN) {
+                        return status.fail(ErrorCode.MISSING_OPERATOR, buf.end(i));
+                    }
+                } else if (Token.isOperand(code)) {
+                    operand = false;
+                }
+            } else if (code == Token.RIGHT_PAREN) {
+                // f() is left for the Parser to count
+                boolean emptyCall = i >= 2 && buf.code(i - 1) == Token.LEFT_PAREN &&
+                        Operators.isFunction(buf.code(i - 2));
+                if (operand && !emptyCall) {
+                    return status.fail(ErrorCode.MISSING_OPERAND, at);
+                }
+                if (open == 0) {
+                    return status.fail(ErrorCode.MISSING_OPERATOR, at);
+                }
+                open--;
+                operand = false;
+            } else if (code == Token.SEPARATOR && open == 0) {
+                return status.fail(ErrorCode.MISSING_OPERATOR, at);
+            } else {
+                // A binary operator or a separator
+                if (operand) {
+                    return status.fail(ErrorCode.MISSING_OPERAND, at);
+                }
+                operand = true;
+            }
+            return true;
+        }
+
+        // After the last token, the input is length long
+        boolean end(int length, Status status) {
+            if (operand) {
+                return status.fail(ErrorCode.MISSING_OPERAND, length);
+            }
+            if (open > 0) {
+                return status.fail(ErrorCode.MISSING_OPERATOR, length);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package calc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.out;
+
+/*
+ *   Load generator and latency report for WebCalcServer
+ *
+ *   Sends POST /eval requests over keep-alive loopback connections (see
+ *   RawHttpClient), with expressions drawn from a weighted mix of Corpus
+ *   kinds. Without -p it starts its own server on a free port, so
+ *   nothing else is needed.
+ *
+ *   Open loop (-r rate): requests are due at a fixed rate, spread over
+ *   the connections. Latency is counted from when a request was due, not
+ *   from when it was sent, so a stall delays the requests behind it and
+ *   they count it (coordinated omission corrected). This is what users
+ *   arriving at that rate would see.
+ *
+ *   Closed loop (no -r): each connection sends its next request when the
+ *   answer comes. A stall then hides the requests that would have been
+ *   sent meanwhile, so the corrected latencies add them back: a latency
+ *   L adds L - m, L - 2m ... down to m, where m is the median latency.
+ *
+ *   Reports throughput, status codes and p50/p90/p99/p999/max, both as
+ *   corrected and as the service time of each request alone. All
+ *   latencies are kept and sorted, the percentiles are exact.
+ *
+ *   Arguments (all optional):
+ *     -p port    Server to load (default: start one)
+ *     -r n       Requests per second, open loop (default: closed loop)
+ *     -c n       Connections (default 16)
+ *     -d s       Measured seconds (default 10)
+ *     -w s       Warmup seconds, not measured (default 3)
+ *     -x mix     Corpus weights, e.g. short=8,flat=1,nested=1 (default)
+ */
+class LoadGen {
+
+    public static void main(String[] args) throws Exception {
+        LoadGen gen = new LoadGen();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            gen.set(args[i], args[i + 1]);
+        }
+        gen.run();
+    }
+
+    int port = -1;
+    double rate;                  // 0 for closed loop
+    int connections = 16;
+    int seconds = 10;
+    int warmupSeconds = 3;
+    String mix = "short=8,flat=1,nested=1";
+
+    void set(String option, String value) {
+        switch (option) {
+            case "-p":
+                port = Integer.parseInt(value);
+                break;
+            case "-r":
+                rate = Double.parseDouble(value);
+                break;
+            case "-c":
+                connections = Integer.parseInt(value);
+                break;
+            case "-d":
+                seconds = Integer.parseInt(value);
+                break;
+            case "-w":
+                warmupSeconds = Integer.parseInt(value);
+                break;
+            case "-x":
+                mix = value;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    void run() throws Exception {
+        WebCalcServer server = null;
+        if (port < 0) {
+            ServerConfig config = new ServerConfig();
+            config.port = 0;
+            config.accessLog = false;   // Not measured
+            server = new WebCalcServer(config);
+            server.run();
+            port = server.getPort();
+        }
+        try {
+            byte[][] requests = requests(mix);
+            out.printf("%s loop, %d connections, %d requests in the mix%n",
+                    rate > 0 ? "Open (" + rate + " requests/s)" : "Closed", connections, requests.length);
+            if (warmupSeconds > 0) {
+                load(requests, warmupSeconds);
+            }
+            long start = System.nanoTime();
+            Recorder[] recorders = load(requests, seconds);
+            report(recorders, System.nanoTime() - start);
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    // ---------- Requests -----------------------
+
+    // Requests for mix, kinds repeated by weight (so picking one at
+    // random follows the mix)
+    static byte[][] requests(String mix) {
+        List<byte[]> requests = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            int i = part.indexOf('=');
+            Corpus corpus = Corpus.valueOf((i < 0 ? part : part.substring(0, i)).trim().toUpperCase());
+            int weight = i < 0 ? 1 : Integer.parseInt(part.substring(i + 1).trim());
+            List<String> exprs = corpus.expressions();
+            for (int w = 0; w < weight; w++) {
+                for (String expr : exprs) {
+                    requests.add(RawHttpClient.formPost("/eval", expr));
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix " + mix);
+        }
+        return requests.toArray(new byte[0][]);
+    }
+
+    // ---------- Load -----------------------
+
+    // What one connection saw
+    private static final class Recorder {
+        long[] corrected = new long[1024];   // From when due (open loop)
+        long[] service = new long[1024];     // From when sent
+        int count;
+        int[] statuses = new int[6];         // By first digit, 0 for failures
+
+        void record(long due, long sent, long done, int status) {
+            if (count == service.length) {
+                corrected = Arrays.copyOf(corrected, 2 * count);
+                service = Arrays.copyOf(service, 2 * count);
+            }
+            corrected[count] = done - due;
+            service[count] = done - sent;
+            count++;
+            statuses[status / 100]++;
+        }
+    }
+
+    // Run for seconds on all connections, the recorders of each
+    private Recorder[] load(byte[][] requests, int seconds) throws InterruptedException {
+        Recorder[] recorders = new Recorder[connections];
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        for (int c = 0; c < connections; c++) {
+            Recorder recorder = recorders[c] = new Recorder();
+            int id = c;
+            threads[c] = new Thread(() -> connection(id, requests, start, end, recorder), "load-" + c);
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return recorders;
+    }
+
+    // Requests on one connection until end. Open loop: request k of this
+    // connection is due at start + (k * connections + id) / rate.
+    private void connection(int id, byte[][] requests, long start, long end, Recorder recorder) {
+        Random random = new Random(id);
+        double interval = rate > 0 ? 1e9 * connections / rate : 0;
+        long first = rate > 0 ? start + (long) (1e9 * id / rate) : start;
+        RawHttpClient client = null;
+        try {
+            for (long k = 0; ; k++) {
+                long due = rate > 0 ? first + (long) (k * interval) : System.nanoTime();
+                if (due >= end) {
+                    break;
+                }
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+                int status;
+                try {
+                    if (client == null) {
+                        client = new RawHttpClient("localhost", port);
+                    }
+                    status = client.send(requests[random.nextInt(requests.length)]);
+                } catch (IOException e) {
+                    status = 0;   // Failed, connect again
+                    close(client);
+                    client = null;
+                }
+                recorder.record(due, now, System.nanoTime(), status);
+            }
+        } finally {
+            close(client);
+        }
+    }
+
+    private static void close(RawHttpClient client) {
+        try {
+            if (client != null) {
+                client.close();
+            }
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    // ---------- Report -----------------------
+
+    // Throughput is over the time until the last answer, in open loop the
+    // answers may come well after the last request was due
+    private void report(Recorder[] recorders, long elapsed) {
+        int n = 0;
+        int[] statuses = new int[6];
+        for (Recorder r : recorders) {
+            n += r.count;
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] += r.statuses[i];
+            }
+        }
+        long[] service = new long[n];
+        long[] corrected = new long[n];
+        int at = 0;
+        for (Recorder r : recorders) {
+            System.arraycopy(r.service, 0, service, at, r.count);
+            System.arraycopy(r.corrected, 0, corrected, at, r.count);
+            at += r.count;
+        }
+        Arrays.sort(service);
+        if (rate > 0) {
+            Arrays.sort(corrected);
+        } else {
+            corrected = backfill(service, n == 0 ? 0 : service[n / 2]);
+        }
+
+        out.printf("%,d requests in %.1f s, %,.0f requests/s%n", n, elapsed / 1e9, n / (elapsed / 1e9));
+        out.printf("Status 2xx %d, 4xx %d, 5xx %d, failed %d%n", statuses[2], statuses[4], statuses[5], statuses[0]);
+        out.printf("%-12s %10s %10s %10s %10s %10s%n", "Latency ms", "p50", "p90", "p99", "p999", "max");
+        row("corrected", corrected);
+        row("service", service);
+    }
+
+    private static void row(String name, long[] sorted) {
+        out.printf("%-12s %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, percentile(sorted, 0.5) / 1e6,
+                percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6,
+                percentile(sorted, 0.999) / 1e6, percentile(sorted, 1) / 1e6);
+    }
+
+    // Nearest rank, sorted must be sorted (0 if empty)
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    // Closed loop correction: a latency L, longer than the expected
+    // interval, also stands for the requests not sent while waiting, at
+    // L - interval, L - 2 * interval ... (as HdrHistogram does). Sorted
+    // in, sorted out.
+    static long[] backfill(long[] sorted, long interval) {
+        if (interval <= 0) {
+            return sorted;
+        }
+        long extra = 0;
+        for (long l : sorted) {
+            extra += Math.max(l / interval - 1, 0);
+        }
+        if (sorted.length + extra > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many latencies to correct");
+        }
+        long[] all = Arrays.copyOf(sorted, (int) (sorted.length + extra));
+        int at = sorted.length;
+        for (long l : sorted) {
+            for (long missed = l - interval; missed >= interval; missed -= interval) {
+                all[at++] = missed;
+            }
+        }
+        Arrays.sort(all);
+        return all;
+    }
+}
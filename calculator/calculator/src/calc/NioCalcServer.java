@@ -0,0 +1,483 @@
+package calc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static java.lang.System.out;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+        A non-blocking Web server for the Calculator
+
+        An optional alternative to WebCalcServer built on NIO selectors.
+        GET and POST give the same page as WebCalcServer, /eval works
+        the same (/batch is only in WebCalcServer).
+
+        - HTTP/1.1 keep-alive and pipelined requests (answered in order)
+        - One selector per event loop (threads in ServerConfig), new
+          connections are spread over the loops
+        - Each connection has a direct input and output buffer from the
+          loop's pool, reused when the connection closes
+        - The page is pre-encoded (ResultPage), only the result is added
+
+        Start this and visit localhost:8080 (same settings as WebCalcServer)
+ */
+public class NioCalcServer {
+
+    public static void main(String[] args) throws IOException {
+        NioCalcServer server = new NioCalcServer(ServerConfig.of(args));
+        server.run();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+    }
+
+    // Max size of a request (head and body)
+    private final static int BUFFER_SIZE = 16 * 1024;
+    // Room needed in the output buffer before a request is handled
+    private final static int MAX_RESPONSE = 4 * 1024;
+    private final static int MAX_POOLED = 256;
+
+    private final static byte[] STATUS_200 = "HTTP/1.1 200 OK\r\n".getBytes(US_ASCII);
+    private final static byte[] STATUS_400 = "HTTP/1.1 400 Bad Request\r\n".getBytes(US_ASCII);
+    private final static byte[] STATUS_413 = "HTTP/1.1 413 Payload Too Large\r\n".getBytes(US_ASCII);
+    private final static byte[] STATUS_501 = "HTTP/1.1 501 Not Implemented\r\n".getBytes(US_ASCII);
+    private final static byte[] TEXT_HTML = "Content-Type: text/html; charset=utf-8\r\n".getBytes(US_ASCII);
+    private final static byte[] TEXT_PLAIN = "Content-Type: text/plain; charset=utf-8\r\n".getBytes(US_ASCII);
+    private final static byte[] APPLICATION_JSON = "Content-Type: application/json\r\n".getBytes(US_ASCII);
+    private final static byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(US_ASCII);
+    private final static byte[] CONNECTION_CLOSE = "Connection: close\r\n".getBytes(US_ASCII);
+    private final static byte[] CRLF = "\r\n".getBytes(US_ASCII);
+    private final static byte[] ERROR_OCCURRED = "En Error occurred".getBytes(US_ASCII);
+    private final static byte[] BAD_REQUEST = "Bad request".getBytes(US_ASCII);
+
+    private final Calculator calc = new Calculator();
+    private final ResultPage page = new ResultPage();
+    private final ServerConfig config;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private volatile boolean running;
+
+    NioCalcServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port), config.backlog);
+        serverChannel.configureBlocking(false);
+        running = true;
+        loops = new EventLoop[Math.max(1, config.threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-calc-" + i);
+            t.start();
+        }
+        out.println("NIO server started (" + config + "). Visit localhost:" + getPort());
+    }
+
+    void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            out.println("An exception occurred " + e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        out.println("NIO server stopped");
+    }
+
+    int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    // ---------- Event loop ----------------
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+        int next;   // Round robin over loops, only used by the accepting loop
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Called from the accepting loop
+        void add(SocketChannel ch) {
+            added.add(ch);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerAdded();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                out.println("An exception occurred " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection c = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    c.onRead();
+                } else if (key.isWritable()) {
+                    c.onReady();
+                }
+            } catch (IOException e) {
+                c.close();   // Client went away
+            } catch (RuntimeException e) {
+                // A bug must cost one connection, not the loop
+                out.println("An exception occurred " + e);
+                c.close();
+            }
+        }
+
+        private void accept() {
+            try {
+                SocketChannel ch;
+                while ((ch = serverChannel.accept()) != null) {
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    loops[Math.floorMod(next++, loops.length)].add(ch);
+                }
+            } catch (IOException e) {
+                out.println("An exception occurred " + e.getMessage());
+            }
+        }
+
+        private void registerAdded() {
+            SocketChannel ch;
+            while ((ch = added.poll()) != null) {
+                try {
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, ch, key));
+                } catch (IOException e) {
+                    out.println("An exception occurred " + e.getMessage());
+                }
+            }
+        }
+
+        ByteBuffer takeBuffer() {
+            ByteBuffer bb = pool.poll();
+            return bb != null ? bb : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void releaseBuffer(ByteBuffer bb) {
+            if (pool.size() < MAX_POOLED) {
+                bb.clear();
+                pool.push(bb);
+            }
+        }
+    }
+
+    // ---------- Connection ----------------
+
+    private final class Connection {
+        final EventLoop loop;
+        final SocketChannel ch;
+        final SelectionKey key;
+        ByteBuffer in;     // Always in fill mode between calls
+        ByteBuffer out;    // Always in fill mode between calls
+        boolean closing;   // Close when all is written
+
+        Connection(EventLoop loop, SocketChannel ch, SelectionKey key) {
+            this.loop = loop;
+            this.ch = ch;
+            this.key = key;
+            in = loop.takeBuffer();
+            out = loop.takeBuffer();
+        }
+
+        void onRead() throws IOException {
+            if (ch.read(in) < 0) {
+                close();
+                return;
+            }
+            onReady();
+        }
+
+        // Handle requests and write responses until out of input or the
+        // socket is full (then wait to write, and don't read meanwhile)
+        void onReady() throws IOException {
+            while (true) {
+                boolean handled = process();
+                if (!flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (closing) {
+                    close();
+                    return;
+                }
+                if (!handled) {
+                    break;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Handle all complete requests in the input that fit in the output,
+        // true if any was handled
+        private boolean process() {
+            boolean handled = false;
+            in.flip();
+            while (!closing && out.remaining() >= MAX_RESPONSE) {
+                int start = in.position();
+                int headEnd = findHeadEnd(in, start);
+                if (headEnd < 0) {
+                    if (in.limit() - start == in.capacity()) {
+                        respondError(STATUS_413);   // Head too large
+                    }
+                    break;
+                }
+                Request req = Request.parse(in, start, headEnd);
+                if (req == null) {
+                    respondError(STATUS_400);
+                    break;
+                }
+                if (req.chunked) {
+                    respondError(STATUS_501);
+                    break;
+                }
+                if (headEnd - start + req.contentLength > in.capacity()) {
+                    respondError(STATUS_413);
+                    break;
+                }
+                if (in.limit() < headEnd + req.contentLength) {
+                    break;  // Wait for the body
+                }
+                closing = !req.keepAlive;
+                int mark = out.position();
+                try {
+                    respond(req, bodyOf(in, headEnd, req.contentLength));
+                } catch (IllegalArgumentException e) {
+                    // E.g. a bad %-escape, drop what was written and say so
+                    out.position(mark);
+                    respond(STATUS_400, TEXT_PLAIN, BAD_REQUEST);
+                }
+                in.position(headEnd + req.contentLength);
+                handled = true;
+            }
+            in.compact();
+            return handled;
+        }
+
+        // Write as much as possible, true if all was written
+        private boolean flush() throws IOException {
+            out.flip();
+            ch.write(out);
+            boolean done = !out.hasRemaining();
+            out.compact();
+            return done;
+        }
+
+        // ---------- Routes (same as WebCalcServer) ----------------
+
+        private void respond(Request req, String body) {
+            if (req.path.equals("/eval")) {
+                respondEval(req, body);
+            } else if (req.method.equals("GET")) {
+                respondPage(STATUS_200, ResultPage.ascii(Double.NaN));
+            } else if (req.method.equals("POST")) {
+                // This is "Expression=1+2 ..."
+                String line = body.lines().findFirst().orElse("");
+                String[] parts = line.split("=");
+                if (parts.length < 2) {
+                    respondPage(STATUS_400, ErrorCode.MISSING_OPERAND.message.getBytes(US_ASCII));
+                    return;
+                }
+                Result result = calc.evalResult(URLDecoder.decode(parts[1], UTF_8));
+                if (result.isError()) {
+                    respondPage(STATUS_400, result.error.message.getBytes(US_ASCII));
+                } else {
+                    respondPage(STATUS_200, ResultPage.ascii(result.value));
+                }
+            } else {
+                respond(STATUS_200, TEXT_PLAIN, ERROR_OCCURRED);
+            }
+        }
+
+        private void respondEval(Request req, String body) {
+            String expr = req.method.equals("POST") ? body.trim() : req.queryParam("expr");
+            if (expr == null) {
+                respond(STATUS_400, TEXT_PLAIN, "Missing expr".getBytes(US_ASCII));
+                return;
+            }
+            Result result = calc.evalResult(expr);
+            if ("json".equals(req.queryParam("format"))) {
+                respond(STATUS_200, APPLICATION_JSON, result.toJson().getBytes(UTF_8));
+            } else {
+                respond(STATUS_200, TEXT_PLAIN, result.toString().getBytes(UTF_8));
+            }
+        }
+
+        private void respondError(byte[] status) {
+            closing = true;
+            respond(status, TEXT_PLAIN, new byte[0]);
+        }
+
+        private void respondPage(byte[] status, byte[] result) {
+            head(status, TEXT_HTML, page.length(result));
+            page.writeTo(out, result);
+        }
+
+        private void respond(byte[] status, byte[] contentType, byte[] body) {
+            head(status, contentType, body.length);
+            out.put(body);
+        }
+
+        private void head(byte[] status, byte[] contentType, int length) {
+            out.put(status).put(contentType).put(CONTENT_LENGTH);
+            putDecimal(out, length);
+            out.put(CRLF);
+            if (closing) {
+                out.put(CONNECTION_CLOSE);
+            }
+            out.put(CRLF);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+            if (in != null) {
+                loop.releaseBuffer(in);
+                loop.releaseBuffer(out);
+                in = null;
+                out = null;
+            }
+        }
+    }
+
+    // ---------- HTTP parsing ----------------
+
+    // Index after the empty line ending the head, or -1
+    private static int findHeadEnd(ByteBuffer bb, int from) {
+        for (int i = from; i + 3 < bb.limit(); i++) {
+            if (bb.get(i) == '\r' && bb.get(i + 1) == '\n' && bb.get(i + 2) == '\r' && bb.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    private static String bodyOf(ByteBuffer bb, int from, int length) {
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        bb.get(from, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putDecimal(ByteBuffer bb, int n) {
+        if (n >= 10) {
+            putDecimal(bb, n / 10);
+        }
+        bb.put((byte) ('0' + n % 10));
+    }
+
+    private static final class Request {
+        String method;
+        String path;
+        String query;
+        int contentLength;
+        boolean keepAlive;
+        boolean chunked;
+
+        // Request from the head in [start, end), null if malformed
+        static Request parse(ByteBuffer bb, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            bb.get(start, bytes);
+            String[] lines = new String(bytes, ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                return null;
+            }
+            Request req = new Request();
+            req.method = requestLine[0];
+            String target = requestLine[1];
+            int q = target.indexOf('?');
+            req.path = q < 0 ? target : target.substring(0, q);
+            req.query = q < 0 ? null : target.substring(q + 1);
+            boolean http11 = requestLine[2].equals("HTTP/1.1");
+            req.keepAlive = http11;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    return null;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        req.contentLength = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    if (req.contentLength < 0) {
+                        return null;
+                    }
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    req.keepAlive = http11 ? !value.equalsIgnoreCase("close") : value.equalsIgnoreCase("keep-alive");
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    req.chunked = true;
+                }
+            }
+            return req;
+        }
+
+        String queryParam(String name) {
+            return WebCalcServer.queryParam(query, name);
+        }
+    }
+}
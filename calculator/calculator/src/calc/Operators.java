@@ -0,0 +1,226 @@
+package calc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ *   Registry of operators and functions
+ *
+ *   Every operator (binary like *, prefix like unary minus) and every
+ *   function (like sqrt(x) or max(x; y)) has a token code. Its kind,
+ *   arity, precedence, associativity, text and implementation are kept
+ *   in tables indexed by the code, so the Lexer, the Parser and the
+ *   evaluators find them with an array lookup.
+ *
+ *   + - * / ^ have fixed codes (see Token) and are evaluated by the
+ *   switch in Calculator.applyOperator, all others through the tables.
+ *   More operators and functions may be registered, they get the next
+ *   free code. Register them before they are used (codes are only valid
+ *   after registration) and only pure ones: the Optimizer folds and
+ *   shares calls.
+ *
+ *   Function arguments are separated by ';', since ',' is a decimal
+ *   point in numbers (1,5 is 1.5).
+ */
+final class Operators {
+
+    enum Kind {
+        BINARY,
+        PREFIX,
+        FUNCTION
+    }
+
+    // Codes are dense and small, the tables have room for all of them
+    final static int MAX_CODES = 64;
+
+    private final static Kind[] KINDS = new Kind[MAX_CODES];
+    private final static int[] ARITY = new int[MAX_CODES];
+    private final static int[] PRECEDENCE = new int[MAX_CODES];
+    private final static boolean[] RIGHT_ASSOCIATIVE = new boolean[MAX_CODES];
+    private final static String[] TEXT = new String[MAX_CODES];
+    private final static DoubleUnaryOperator[] UNARY = new DoubleUnaryOperator[MAX_CODES];
+    private final static DoubleBinaryOperator[] BINARY = new DoubleBinaryOperator[MAX_CODES];
+    // Prefix operator written with the same char as a binary one (- and neg)
+    private final static int[] PREFIX_OF = new int[MAX_CODES];
+    // Text to code, for token strings and function names
+    private final static Map<String, Integer> CODES = new ConcurrentHashMap<>();
+
+    private static int next = Token.NEG;
+    // Codes below are built in
+    private final static int BUILT_IN;
+
+    static {
+        java.util.Arrays.fill(PREFIX_OF, Token.NONE);
+        add(Token.ADD, Kind.BINARY, "+", 2, 2, false, null, (l, r) -> l + r);
+        add(Token.SUB, Kind.BINARY, "-", 2, 2, false, null, (l, r) -> l - r);
+        add(Token.MUL, Kind.BINARY, "*", 2, 3, false, null, (l, r) -> l * r);
+        add(Token.DIV, Kind.BINARY, "/", 2, 3, false, null,
+                (l, r) -> Calculator.applyOperator(Token.DIV, r, l));
+        add(Token.POW, Kind.BINARY, "^", 2, 5, true, null, Math::pow);
+        // Below ^ so -2^2 is -4, above * so -2*3 is (-2)*3
+        prefix('-', "neg", 4, x -> -x);
+        function("sqrt", Math::sqrt);
+        function("sin", Math::sin);
+        function("cos", Math::cos);
+        function("abs", Math::abs);
+        function("max", Math::max);
+        function("min", Math::min);
+        BUILT_IN = next;
+    }
+
+    private Operators() {
+    }
+
+    // ---------- Registration -----------------------
+
+    // A binary operator written as symbol, precedence of + is 2, * is 3
+    // and ^ is 5. Returns its code.
+    static synchronized int binary(char symbol, int precedence, boolean rightAssociative, DoubleBinaryOperator f) {
+        checkSymbol(symbol, false);
+        int code = add(next, Kind.BINARY, String.valueOf(symbol), 2, precedence, rightAssociative, null, f);
+        Token.define(symbol, code);
+        return code;
+    }
+
+    // A prefix operator. If symbol is also a binary operator (as -) it is
+    // this operator where an operand is expected, and text must differ
+    // from the symbol so token strings are not ambiguous.
+    static synchronized int prefix(char symbol, String text, int precedence, DoubleUnaryOperator f) {
+        checkSymbol(symbol, true);
+        int binary = Token.of(symbol);
+        int code = add(next, Kind.PREFIX, text, 1, precedence, true, f, null);
+        if (binary == Token.NONE) {
+            Token.define(symbol, code);
+        } else {
+            PREFIX_OF[binary] = code;
+        }
+        return code;
+    }
+
+    static synchronized int function(String name, DoubleUnaryOperator f) {
+        checkName(name);
+        return add(next, Kind.FUNCTION, name, 1, 0, false, f, null);
+    }
+
+    static synchronized int function(String name, DoubleBinaryOperator f) {
+        checkName(name);
+        return add(next, Kind.FUNCTION, name, 2, 0, false, null, f);
+    }
+
+    private static int add(int code, Kind kind, String text, int arity, int precedence, boolean right,
+                           DoubleUnaryOperator unary, DoubleBinaryOperator binary) {
+        if (code >= MAX_CODES) {
+            throw new IllegalStateException("Too many operators");
+        }
+        if (CODES.containsKey(text)) {
+            throw new IllegalArgumentException("Already registered: " + text);
+        }
+        KINDS[code] = kind;
+        ARITY[code] = arity;
+        PRECEDENCE[code] = precedence;
+        RIGHT_ASSOCIATIVE[code] = right;
+        TEXT[code] = text;
+        UNARY[code] = unary;
+        BINARY[code] = binary;
+        CODES.put(text, code);   // Publishes the table entries
+        next = Math.max(next, code + 1);
+        return code;
+    }
+
+    private static void checkSymbol(char symbol, boolean prefix) {
+        int code = Token.of(symbol);
+        boolean free = code == Token.NONE || (prefix && isBinary(code) && PREFIX_OF[code] == Token.NONE);
+        if (!free || symbol >= 128 || Character.isLetterOrDigit(symbol) || " .,_".indexOf(symbol) >= 0) {
+            throw new IllegalArgumentException("Bad operator symbol: " + symbol);
+        }
+    }
+
+    private static void checkName(String name) {
+        boolean ok = !name.isEmpty() && (Character.isLetter(name.charAt(0)) || name.charAt(0) == '_');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            ok &= c < 128 && (Character.isLetterOrDigit(c) || c == '_');
+        }
+        if (!ok) {
+            throw new IllegalArgumentException("Bad function name: " + name);
+        }
+    }
+
+    // ---------- Lookup, by code -----------------------
+
+    // Number of operands, 0 if not an operator or function
+    static int arity(int code) {
+        return code >= 0 && code < MAX_CODES ? ARITY[code] : 0;
+    }
+
+    static boolean isBinary(int code) {
+        return arity(code) > 0 && KINDS[code] == Kind.BINARY;
+    }
+
+    static boolean isPrefix(int code) {
+        return arity(code) > 0 && KINDS[code] == Kind.PREFIX;
+    }
+
+    static boolean isFunction(int code) {
+        return arity(code) > 0 && KINDS[code] == Kind.FUNCTION;
+    }
+
+    static boolean isBuiltIn(int code) {
+        return arity(code) > 0 && code < BUILT_IN;
+    }
+
+    static int precedence(int code) {
+        return PRECEDENCE[code];
+    }
+
+    static boolean isRightAssociative(int code) {
+        return RIGHT_ASSOCIATIVE[code];
+    }
+
+    static String text(int code) {
+        return TEXT[code];
+    }
+
+    // The prefix operator for a binary one where an operand is
+    // expected, or NONE
+    static int prefixOf(int code) {
+        return PREFIX_OF[code];
+    }
+
+    static DoubleUnaryOperator unary(int code) {
+        return UNARY[code];
+    }
+
+    static DoubleBinaryOperator binary(int code) {
+        return BINARY[code];
+    }
+
+    // ---------- Lookup, by text -----------------------
+
+    // Code for operator or function text, else NONE
+    static int code(String text) {
+        Integer code = CODES.get(text);
+        return code == null ? Token.NONE : code;
+    }
+
+    // Code for a function name, else NONE
+    static int function(String name) {
+        int code = code(name);
+        return isFunction(code) ? code : Token.NONE;
+    }
+
+    // ---------- Evaluation -----------------------
+
+    static double apply(int code, double x) {
+        return UNARY[code].applyAsDouble(x);
+    }
+
+    static double apply(int code, double left, double right) {
+        if (code <= Token.POW) {
+            return Calculator.applyOperator(code, right, left);
+        }
+        return BINARY[code].applyAsDouble(left, right);
+    }
+}
@@ -0,0 +1,353 @@
+package calc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ *   Optimizes programs between infix2Postfix and evaluation
+ *
+ *   The postfix program is made into an expression tree where equal
+ *   subtrees are the same node (so it's really a DAG), then written back
+ *   as postfix:
+ *   - Constant subtrees are folded to a number, except if that throws
+ *     (e.g. 1 / 0 is left for evaluation to report)
+ *   - A subexpression used more than once is computed once, STOREd in a
+ *     temporary and then LOADed (only those with variables, constant
+ *     ones are folded). a + b and b + a are the same.
+ *   - x * 1, 1 * x, x / 1, x - 0, x ^ 1 and -(-x) are x, and x ^ 0 is
+ *     1 if x can't throw. Nothing else is safe for doubles, e.g. x + 0
+ *     is not x for x = -0 and x * 0 is not 0 for NaN or infinite x.
+ *
+ *   The result is exactly that of the original program, including which
+ *   inputs throw, for doubles. Programs with folded constants keep the
+ *   original (see Program.unfolded()). -Dcalc.optimize=false turns the
+ *   optimizer off.
+ */
+final class Optimizer {
+
+    final static boolean ENABLED = Boolean.parseBoolean(System.getProperty("calc.optimize", "true"));
+
+    private final LongAdder programs = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder simplified = new LongAdder();
+
+    // Optimized program, or program itself if nothing could be removed
+    Program optimize(Program program) {
+        if (!ENABLED || program.temps() > 0) {
+            return program;   // Off or already optimized
+        }
+        Graph graph = new Graph();
+        Node root = graph.build(program);
+        Program result = graph.emit(root, program.size());
+        int saved = operators(program) - operators(result);
+        programs.increment();
+        if (saved == 0) {
+            return program;
+        }
+        removed.add(saved);
+        folded.add(graph.folded);
+        shared.add(graph.loads);
+        simplified.add(graph.simplified);
+        // Folds are rounded as doubles, other arithmetic needs the original
+        return graph.folded > 0 ? result.withUnfolded(program) : result;
+    }
+
+    static int operators(Program program) {
+        int n = 0;
+        for (int i = 0; i < program.size(); i++) {
+            if (Token.isOperator(program.op(i))) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // ------- Reporting ------------------------
+
+    long programs() {
+        return programs.sum();
+    }
+
+    // Operators removed in total
+    long removed() {
+        return removed.sum();
+    }
+
+    long folded() {
+        return folded.sum();
+    }
+
+    // Reuses of a common subexpression
+    long shared() {
+        return shared.sum();
+    }
+
+    long simplified() {
+        return simplified.sum();
+    }
+
+    String report() {
+        return String.format("Optimized %d programs, removed %d operators (%d folds, %d shared, %d identities)",
+                programs(), removed(), folded(), shared(), simplified());
+    }
+
+    // ------- Expression DAG ------------------------
+
+    private final static Node[] NO_ARGS = new Node[0];
+
+    private static final class Node {
+        final int id;         // Creation order, arguments are always lower
+        final int op;
+        final double value;
+        final Node[] args;    // Empty for NUMBER and VARIABLE
+        final int offset;     // In the input, not part of equality
+        final boolean constant;   // No variables below
+        final boolean safe;       // Can't throw
+        int uses;
+        int slot = -1;        // Temporary, if used more than once
+        boolean reachable;
+        boolean stored;
+
+        Node(int id, int op, double value, Node[] args, int offset) {
+            this.id = id;
+            this.op = op;
+            this.value = value;
+            this.args = args;
+            this.offset = offset;
+            boolean constant = op != Token.VARIABLE;
+            // Registered functions might throw, the built in ones only on / 0
+            boolean safe = args.length == 0 || Operators.isBuiltIn(op);
+            for (Node arg : args) {
+                constant &= arg.constant;
+                safe &= arg.safe;
+            }
+            if (op == Token.DIV) {
+                safe &= isNumber(args[1]) && args[1].value != 0;
+            }
+            this.constant = constant;
+            this.safe = safe;
+        }
+
+        boolean isCommutative() {
+            return op == Token.ADD || op == Token.MUL;
+        }
+
+        // Arguments are already unique, so they are compared by identity
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node n = (Node) o;
+            if (op != n.op || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(n.value)) {
+                return false;
+            }
+            if (isCommutative() && args[0] == n.args[1] && args[1] == n.args[0]) {
+                return true;
+            }
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] != n.args[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = 31 * op + Double.hashCode(value);
+            if (isCommutative()) {
+                return 31 * h + args[0].id + args[1].id;
+            }
+            for (Node arg : args) {
+                h = 31 * h + arg.id;
+            }
+            return h;
+        }
+    }
+
+    private static boolean isNumber(Node n) {
+        return n.op == Token.NUMBER;
+    }
+
+    private static boolean isNumber(Node n, double value) {
+        return n.op == Token.NUMBER && n.value == value;
+    }
+
+    // One optimization, not thread-safe
+    private static final class Graph {
+        private final Map<Node, Node> unique = new HashMap<>();
+        private final List<Node> nodes = new ArrayList<>();
+        int folded;
+        int simplified;
+        int loads;
+
+        Node build(Program program) {
+            Node[] stack = new Node[program.maxDepth()];
+            int sp = 0;
+            for (int i = 0; i < program.size(); i++) {
+                int op = program.op(i);
+                if (Token.isOperand(op)) {
+                    stack[sp++] = node(op, program.value(i), NO_ARGS, program.offset(i));
+                } else {
+                    int arity = Operators.arity(op);
+                    sp -= arity;
+                    stack[sp] = operator(op, Arrays.copyOfRange(stack, sp, sp + arity), program.offset(i));
+                    sp++;
+                }
+            }
+            return stack[0];
+        }
+
+        private Node operator(int op, Node[] args, int offset) {
+            boolean numbers = true;
+            for (Node arg : args) {
+                numbers &= isNumber(arg);
+            }
+            if (numbers) {
+                try {
+                    double value = args.length == 1 ? Operators.apply(op, args[0].value) :
+                            Operators.apply(op, args[0].value, args[1].value);
+                    folded++;
+                    return node(Token.NUMBER, value, NO_ARGS, offset);
+                } catch (RuntimeException e) {
+                    // Left for evaluation to throw
+                }
+            }
+            Node n = simplify(op, args, offset);
+            if (n != null) {
+                simplified++;
+                return n;
+            }
+            return node(op, 0, args, offset);
+        }
+
+        // Identities that hold for all doubles, or null
+        private Node simplify(int op, Node[] args, int offset) {
+            Node left = args[0];
+            Node right = args.length > 1 ? args[1] : null;
+            switch (op) {
+                case Token.MUL:
+                    if (isNumber(right, 1)) {
+                        return left;
+                    }
+                    if (isNumber(left, 1)) {
+                        return right;
+                    }
+                    break;
+                case Token.DIV:
+                    if (isNumber(right, 1)) {
+                        return left;
+                    }
+                    break;
+                case Token.SUB:
+                    // -0 - -0 is +0, so only for +0
+                    if (isNumber(right) && Double.doubleToRawLongBits(right.value) == 0) {
+                        return left;
+                    }
+                    break;
+                case Token.POW:
+                    if (isNumber(right, 1)) {
+                        return left;
+                    }
+                    // Math.pow(x, 0) is 1 for every x, even NaN
+                    if (isNumber(right, 0) && left.safe) {
+                        return node(Token.NUMBER, 1, NO_ARGS, offset);
+                    }
+                    break;
+                case Token.NEG:
+                    // Negation only flips the sign bit
+                    if (left.op == Token.NEG) {
+                        return left.args[0];
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        }
+
+        private Node node(int op, double value, Node[] args, int offset) {
+            Node n = new Node(nodes.size(), op, value, args, offset);
+            Node old = unique.putIfAbsent(n, n);
+            if (old != null) {
+                return old;
+            }
+            nodes.add(n);
+            return n;
+        }
+
+        // Postfix for root, no longer than capacity (the original size)
+        Program emit(Node root, int capacity) {
+            // Parents have higher ids, so one pass from the top counts uses
+            root.reachable = true;
+            int temps = 0;
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                Node n = nodes.get(i);
+                if (n.reachable) {
+                    for (Node arg : n.args) {
+                        arg.reachable = true;
+                        arg.uses++;
+                    }
+                }
+            }
+            for (Node n : nodes) {
+                if (n.reachable && n.args.length > 0 && n.uses > 1 && !n.constant) {
+                    n.slot = temps++;
+                }
+            }
+
+            int[] ops = new int[capacity];
+            double[] values = new double[capacity];
+            int[] offsets = new int[capacity];
+            int size = 0;
+            // Iterative post order, nesting may be deeper than the Java stack
+            int edges = 1;
+            for (Node n : nodes) {
+                edges += n.args.length;
+            }
+            Node[] work = new Node[edges];
+            boolean[] expanded = new boolean[work.length];
+            int top = 0;
+            work[0] = root;
+            while (top >= 0) {
+                Node n = work[top];
+                if (n.stored) {
+                    ops[size] = Token.LOAD;
+                    offsets[size] = n.offset;
+                    values[size++] = n.slot;
+                    loads++;
+                    top--;
+                } else if (n.args.length == 0) {
+                    ops[size] = n.op;
+                    offsets[size] = n.offset;
+                    values[size++] = n.value;
+                    top--;
+                } else if (!expanded[top]) {
+                    expanded[top] = true;
+                    for (int a = n.args.length - 1; a >= 0; a--) {
+                        work[++top] = n.args[a];
+                        expanded[top] = false;
+                    }
+                } else {
+                    ops[size] = n.op;
+                    offsets[size++] = n.offset;
+                    if (n.slot >= 0) {
+                        ops[size] = Token.STORE;
+                        offsets[size] = n.offset;
+                        values[size++] = n.slot;
+                        n.stored = true;
+                    }
+                    top--;
+                }
+            }
+            return Program.of(Arrays.copyOf(ops, size), Arrays.copyOf(values, size), Arrays.copyOf(offsets, size));
+        }
+    }
+}
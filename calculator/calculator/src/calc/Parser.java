@@ -0,0 +1,122 @@
+package calc;
+
+import java.util.Arrays;
+
+/*
+ *   Infix to postfix (shunting-yard) on token codes
+ *
+ *   The result is the order of the tokens in postfix, as indexes into
+ *   the token buffer (parentheses and separators are dropped). Only int
+ *   arrays are used for the operator stack.
+ *
+ *   Prefix operators are pushed without popping anything (they have no
+ *   left operand). A function is pushed with its parenthesis and goes to
+ *   the output when it is closed, after its number of arguments has been
+ *   checked.
+ *
+ *   IncrementalParser does the same, resumable after an edit, and
+ *   StreamEvaluator evaluates as it goes.
+ */
+final class Parser {
+
+    private Parser() {
+    }
+
+    static int[] toPostfix(TokenBuffer tokens) {
+        Status status = new Status();
+        int[] postfix = toPostfix(tokens, status);
+        if (postfix == null) {
+            throw status.exception();
+        }
+        return postfix;
+    }
+
+    // As above without exceptions, null if there is an error (in status)
+    static int[] toPostfix(TokenBuffer tokens, Status status) {
+        int n = tokens.size();
+        int[] stack = new int[n];
+        // Arguments seen, for a call's left parenthesis on the stack
+        int[] args = null;
+        int sp = 0;
+        int[] postfix = new int[n];
+        int len = 0;
+
+        for (int i = 0; i < n; i++) {
+            int code = tokens.code(i);
+            if (Token.isOperand(code)) {
+                postfix[len++] = i;
+            } else if (code == Token.LEFT_PAREN) {
+                if (isCall(tokens, i)) {
+                    if (args == null) {
+                        args = new int[n];
+                    }
+                    args[sp] = i + 1 < n && tokens.code(i + 1) == Token.RIGHT_PAREN ? 0 : 1;
+                }
+                stack[sp++] = i;
+            } else if (code == Token.RIGHT_PAREN || code == Token.SEPARATOR) {
+                // Pop until matching left parenthesis.
+                while (sp > 0 && tokens.code(stack[sp - 1]) != Token.LEFT_PAREN) {
+                    postfix[len++] = stack[--sp];
+                }
+                if (sp == 0 || (code == Token.SEPARATOR && !isCall(tokens, stack[sp - 1]))) {
+                    status.fail(ErrorCode.MISSING_OPERATOR, tokens.start(i));
+                    return null;
+                }
+                if (code == Token.SEPARATOR) {
+                    args[sp - 1]++;
+                    continue;
+                }
+                int paren = stack[--sp];  // Drop left parenthesis.
+                if (isCall(tokens, paren)) {
+                    int count = args[sp];
+                    int function = stack[--sp];
+                    int arity = Operators.arity(tokens.code(function));
+                    if (count != arity) {
+                        status.fail(count < arity ? ErrorCode.MISSING_OPERAND : ErrorCode.MISSING_OPERATOR,
+                                tokens.start(i));
+                        return null;
+                    }
+                    postfix[len++] = function;
+                }
+            } else if (Operators.isFunction(code)) {
+                if (i + 1 == n || tokens.code(i + 1) != Token.LEFT_PAREN) {
+                    status.fail(ErrorCode.MISSING_OPERATOR, tokens.end(i));
+                    return null;
+                }
+                stack[sp++] = i;
+            } else if (Operators.isPrefix(code)) {
+                stack[sp++] = i;
+            } else {
+                while (sp > 0 && shouldPop(tokens.code(stack[sp - 1]), code)) {
+                    postfix[len++] = stack[--sp];
+                }
+                stack[sp++] = i;
+            }
+        }
+        // Transfer remaining operators to postfix.
+        while (sp > 0) {
+            int i = stack[--sp];
+            if (tokens.code(i) == Token.LEFT_PAREN) {
+                status.fail(ErrorCode.MISSING_OPERATOR, tokens.start(i));
+                return null;
+            }
+            postfix[len++] = i;
+        }
+        return len == n ? postfix : Arrays.copyOf(postfix, len);
+    }
+
+    // Is the left parenthesis at i the start of a function's arguments?
+    static boolean isCall(TokenBuffer tokens, int i) {
+        return i > 0 && Operators.isFunction(tokens.code(i - 1));
+    }
+
+    // Pop operator on stack before pushing op?
+    static boolean shouldPop(int stackOp, int op) {
+        if (!Operators.isBinary(stackOp) && !Operators.isPrefix(stackOp)) {
+            return false;  // Parenthesis
+        }
+        int stackPrec = Operators.precedence(stackOp);
+        int prec = Operators.precedence(op);
+        return stackPrec > prec || (stackPrec == prec && !Operators.isRightAssociative(op));
+    }
+}
@@ -0,0 +1,289 @@
+package calc;
+
+import java.util.List;
+
+import static calc.Calculator.MISSING_OPERAND;
+import static calc.Calculator.MISSING_OPERATOR;
+
+/*
+ *   A compiled expression
+ *
+ *   Produced once by Calculator.compile() and then evaluated any number
+ *   of times. Never changed after construction, so it may be cached and
+ *   shared freely.
+ *
+ *   The program is postfix as parallel arrays: an opcode (a Token code)
+ *   and, for NUMBER, the value to push (for VARIABLE the index of the
+ *   variable). Evaluation uses a primitive double stack, its max depth
+ *   is known at compile time.
+ *
+ *   Optimized programs (see Optimizer) may also LOAD and STORE
+ *   temporaries, these are kept in the same array above the stack.
+ *
+ *   The offset in the input of each op is kept (if known) so errors
+ *   during evaluation can be reported where they are.
+ *
+ *   A program with folded constants keeps the one before folding, where
+ *   the constants are still as written (for DecimalEvaluator).
+ */
+final class Program {
+
+    private final static double[] NO_VARIABLES = new double[0];
+
+    // Per thread stack, so run() does not allocate
+    private final static ThreadLocal<double[]> SCRATCH = ThreadLocal.withInitial(() -> new double[64]);
+
+    private final int[] ops;
+    private final double[] values;
+    private final int[] offsets;    // Null if not known
+    private final int maxDepth;
+    private final int temps;
+    private final Program unfolded;   // Null if no constants were folded
+
+    private Program(int[] ops, double[] values, int[] offsets) {
+        this.ops = ops;
+        this.values = values;
+        this.offsets = offsets;
+        this.maxDepth = checkDepth(ops);
+        this.temps = checkTemps(ops, values);
+        this.unfolded = null;
+    }
+
+    private Program(Program program, Program unfolded) {
+        this.ops = program.ops;
+        this.values = program.values;
+        this.offsets = program.offsets;
+        this.maxDepth = program.maxDepth;
+        this.temps = program.temps;
+        this.unfolded = unfolded;
+    }
+
+    // This program, remembering the one it was made from by folding
+    // constants (with double arithmetic), see unfolded()
+    Program withUnfolded(Program unfolded) {
+        return new Program(this, unfolded);
+    }
+
+    // Program from opcodes and values (as made by the Optimizer),
+    // offsets may be null
+    static Program of(int[] ops, double[] values, int[] offsets) {
+        if (ops.length != values.length || (offsets != null && offsets.length != ops.length)) {
+            throw new IllegalArgumentException("Ops, values and offsets differ in length");
+        }
+        return new Program(ops.clone(), values.clone(), offsets == null ? null : offsets.clone());
+    }
+
+    // Program from tokens in postfix order (from Parser)
+    static Program of(TokenBuffer tokens, int[] postfix) {
+        int[] ops = new int[postfix.length];
+        double[] values = new double[postfix.length];
+        int[] offsets = new int[postfix.length];
+        for (int i = 0; i < postfix.length; i++) {
+            ops[i] = tokens.code(postfix[i]);
+            values[i] = tokens.value(postfix[i]);
+            offsets[i] = tokens.start(postfix[i]);
+        }
+        return new Program(ops, values, offsets);
+    }
+
+    // Program from postfix strings, numbers are parsed here
+    static Program of(List<String> postfix) {
+        int[] ops = new int[postfix.size()];
+        double[] values = new double[postfix.size()];
+        for (int i = 0; i < ops.length; i++) {
+            String token = postfix.get(i);
+            int code = Token.code(token);
+            if (Token.isOperator(code)) {
+                ops[i] = code;
+            } else {
+                ops[i] = Token.NUMBER;
+                values[i] = Double.parseDouble(token);
+            }
+        }
+        return new Program(ops, values, null);
+    }
+
+    // Simulate the stack, a bad program is rejected here and not in run()
+    private static int checkDepth(int[] ops) {
+        int depth = 0;
+        int max = 0;
+        for (int op : ops) {
+            if (Token.isOperand(op)) {
+                depth++;
+                max = Math.max(max, depth);
+            } else if (op == Token.STORE) {
+                if (depth < 1) {
+                    throw new IllegalArgumentException(MISSING_OPERAND);
+                }
+            } else if (!Token.isOperator(op)) {
+                throw new IllegalArgumentException(Calculator.OP_NOT_FOUND);
+            } else if (depth < Operators.arity(op)) {
+                throw new IllegalArgumentException(MISSING_OPERAND);
+            } else {
+                depth -= Operators.arity(op) - 1;
+            }
+        }
+        if (depth != 1) {
+            throw new IllegalArgumentException(depth == 0 ? MISSING_OPERAND : MISSING_OPERATOR);
+        }
+        return max;
+    }
+
+    // Number of temporaries, each must be stored before it is loaded
+    private static int checkTemps(int[] ops, double[] values) {
+        int temps = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Token.STORE) {
+                temps = Math.max(temps, (int) values[i] + 1);
+            } else if (ops[i] == Token.LOAD && (int) values[i] >= temps) {
+                throw new IllegalArgumentException(MISSING_OPERAND);
+            }
+        }
+        return temps;
+    }
+
+    // ------  Evaluate -------------------
+
+    double run() {
+        return run(scratch(), NO_VARIABLES, null);
+    }
+
+    // Per thread stack with room for this program
+    double[] scratch() {
+        double[] stack = SCRATCH.get();
+        if (stack.length < frameSize()) {
+            stack = new double[Math.max(frameSize(), stack.length * 2)];
+            SCRATCH.set(stack);
+        }
+        return stack;
+    }
+
+    // Evaluate using stack, at least frameSize() long
+    double run(double[] stack) {
+        return run(stack, NO_VARIABLES);
+    }
+
+    // As run(), division by zero is reported in status (NaN is returned)
+    double run(Status status) {
+        return run(scratch(), NO_VARIABLES, status);
+    }
+
+    // Evaluate with variable values (by index)
+    double run(double[] stack, double[] variables) {
+        return run(stack, variables, null);
+    }
+
+    // As above, if status is not null division by zero is reported there
+    // instead of thrown (NaN is returned)
+    double run(double[] stack, double[] variables, Status status) {
+        int sp = 0;
+        for (int i = 0; i < ops.length; i++) {
+            int op = ops[i];
+            if (op == Token.NUMBER) {
+                stack[sp++] = values[i];
+            } else if (op <= Token.POW) {
+                double d1 = stack[--sp];
+                if (d1 == 0 && op == Token.DIV) {
+                    return divisionByZero(i, status);
+                }
+                double d2 = stack[sp - 1];
+                stack[sp - 1] = Calculator.applyOperator(op, d1, d2);
+            } else if (op == Token.VARIABLE) {
+                stack[sp++] = variables[(int) values[i]];
+            } else if (op == Token.LOAD) {
+                stack[sp++] = stack[maxDepth + (int) values[i]];
+            } else if (op == Token.STORE) {
+                stack[maxDepth + (int) values[i]] = stack[sp - 1];
+            } else if (Operators.arity(op) == 1) {
+                stack[sp - 1] = Operators.apply(op, stack[sp - 1]);
+            } else {
+                double right = stack[--sp];
+                stack[sp - 1] = Operators.apply(op, stack[sp - 1], right);
+            }
+        }
+        return stack[0];
+    }
+
+    private double divisionByZero(int i, Status status) {
+        if (status == null) {
+            throw new IllegalArgumentException(Calculator.DIV_BY_ZERO);
+        }
+        status.fail(ErrorCode.DIV_BY_ZERO, offset(i));
+        return Double.NaN;
+    }
+
+    // ------  Accessors -------------------
+
+    int size() {
+        return ops.length;
+    }
+
+    int op(int i) {
+        return ops[i];
+    }
+
+    double value(int i) {
+        return values[i];
+    }
+
+    // Offset in the input of op i, -1 if not known
+    int offset(int i) {
+        return offsets == null ? -1 : offsets[i];
+    }
+
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    int temps() {
+        return temps;
+    }
+
+    // Stack and temporaries
+    int frameSize() {
+        return maxDepth + temps;
+    }
+
+    // The program before constant folding (this if nothing was folded),
+    // for arithmetic other than double, see DecimalEvaluator
+    Program unfolded() {
+        return unfolded == null ? this : unfolded;
+    }
+
+    boolean hasVariables() {
+        for (int op : ops) {
+            if (op == Token.VARIABLE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Rough memory cost, used by the cache to bound its total size
+    int weight() {
+        int weight = 16 + ops.length * (2 * Integer.BYTES + Double.BYTES);
+        return unfolded == null ? weight : weight + unfolded.weight();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            if (ops[i] == Token.NUMBER) {
+                sb.append(values[i]);
+            } else if (ops[i] == Token.VARIABLE) {
+                sb.append('$').append((int) values[i]);
+            } else if (ops[i] == Token.LOAD) {
+                sb.append('t').append((int) values[i]);
+            } else if (ops[i] == Token.STORE) {
+                sb.append("=t").append((int) values[i]);
+            } else {
+                sb.append(Token.text(ops[i]));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package calc;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *   Promotes hot expressions from the interpreter to MethodHandles
+ *
+ *   Every evaluation of a cached expression counts a hit, up to the
+ *   threshold. When an expression reaches the threshold its Program is
+ *   compiled by HandleCompiler and both versions are timed, the handle
+ *   is used from then on only if it is faster. Otherwise (or for very large
+ *   programs) the interpreter is kept.
+ *
+ *   Promotion runs in the background (one daemon thread shared by all
+ *   Promoters), the evaluation that reaches the threshold doesn't wait
+ *   for it. If too many are waiting more are dropped, those expressions
+ *   stay interpreted.
+ *
+ *   Threshold can be set with -Dcalc.promote.threshold=...
+ */
+final class Promoter {
+
+    final static int DEFAULT_THRESHOLD = Integer.getInteger("calc.promote.threshold", 1000);
+    // Larger programs give very deep handle trees, not worth it
+    final static int MAX_PROGRAM_SIZE = 255;
+    private final static int CALIBRATION_RUNS = 2000;
+    // Only the latest promotions are kept for reporting
+    private final static int MAX_REPORTED = 256;
+    private final static int MAX_WAITING = 64;
+
+    private final static Executor BACKGROUND = background();
+
+    private final int threshold;
+    private final Executor executor;
+    private final Deque<Promotion> promotions = new ArrayDeque<>();
+
+    Promoter() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    Promoter(int threshold) {
+        this(threshold, BACKGROUND);
+    }
+
+    // Promotions run on executor (Runnable::run to promote at once)
+    Promoter(int threshold, Executor executor) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.threshold = threshold;
+        this.executor = executor;
+    }
+
+    private static Executor background() {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_WAITING), r -> {
+                    Thread t = new Thread(r, "calc-promoter");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    double eval(CompiledExpression ce) {
+        return eval(ce, null);
+    }
+
+    // As above, if status is not null errors are reported there (see
+    // Program.run). Promoted programs never fail, see promote().
+    double eval(CompiledExpression ce, Status status) {
+        MethodHandle handle = ce.handle();
+        if (handle != null) {
+            return HandleCompiler.invoke(handle);
+        }
+        // Hits are not counted past the threshold, no write per eval
+        if (ce.hits() < threshold && ce.hit() == threshold) {
+            try {
+                executor.execute(() -> promote(ce));
+            } catch (RejectedExecutionException e) {
+                // Stays interpreted
+            }
+        }
+        return ce.program().run(status);
+    }
+
+    private void promote(CompiledExpression ce) {
+        Program program = ce.program();
+        if (program.size() > MAX_PROGRAM_SIZE || program.hasVariables() || program.temps() > 0) {
+            return;
+        }
+        MethodHandle handle = HandleCompiler.compile(program);
+        double interpreted;
+        double compiled;
+        try {
+            // Both warmed up the same way, then measured
+            time(() -> program.run());
+            time(() -> HandleCompiler.invoke(handle));
+            interpreted = time(() -> program.run());
+            compiled = time(() -> HandleCompiler.invoke(handle));
+        } catch (RuntimeException e) {
+            return;  // E.g. division by zero, leave to the interpreter
+        }
+        boolean used = compiled < interpreted;
+        if (used) {
+            ce.setHandle(handle);
+        }
+        record(new Promotion(ce.expr(), program.size(), interpreted, compiled, used));
+    }
+
+    // Mean nanos per run
+    private static double time(Runnable r) {
+        long start = System.nanoTime();
+        for (int i = 0; i < CALIBRATION_RUNS; i++) {
+            r.run();
+        }
+        return (double) (System.nanoTime() - start) / CALIBRATION_RUNS;
+    }
+
+    private synchronized void record(Promotion p) {
+        if (promotions.size() == MAX_REPORTED) {
+            promotions.removeFirst();
+        }
+        promotions.addLast(p);
+    }
+
+    // ------- Reporting ------------------------
+
+    int threshold() {
+        return threshold;
+    }
+
+    synchronized List<Promotion> promotions() {
+        return new ArrayList<>(promotions);
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder("Promoted expressions (threshold " + threshold + ")\n");
+        for (Promotion p : promotions()) {
+            sb.append(p).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static final class Promotion {
+        final String expr;
+        final int size;
+        final double interpretedNanos;
+        final double compiledNanos;
+        final boolean used;   // False if the interpreter was faster
+
+        Promotion(String expr, int size, double interpretedNanos, double compiledNanos, boolean used) {
+            this.expr = expr;
+            this.size = size;
+            this.interpretedNanos = interpretedNanos;
+            this.compiledNanos = compiledNanos;
+            this.used = used;
+        }
+
+        double speedup() {
+            return interpretedNanos / compiledNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [%d ops] interpreter %.1f ns, handle %.1f ns, x%.2f%s",
+                    expr, size, interpretedNanos, compiledNanos, speedup(), used ? "" : " (not used)");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package calc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/*
+ *   A minimal blocking HTTP/1.1 client over one keep-alive connection
+ *
+ *   Used to load the servers. Requests are given as ready made bytes and
+ *   responses are read and dropped (they must have a Content-Length).
+ */
+final class RawHttpClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] skip = new byte[8192];
+
+    RawHttpClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        out = socket.getOutputStream();
+    }
+
+    // A POST request with a form body, as sent by the WebCalc page
+    static byte[] formPost(String path, String body) {
+        return ("POST " + path + " HTTP/1.1\r\nHost: localhost\r\n" +
+                "Content-Type: application/x-www-form-urlencoded\r\n" +
+                "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(US_ASCII);
+    }
+
+    static byte[] get(String target) {
+        return ("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(US_ASCII);
+    }
+
+    // Send request and read the response, returns status code
+    int send(byte[] request) throws IOException {
+        out.write(request);
+        out.flush();
+        return readResponse();
+    }
+
+    private int readResponse() throws IOException {
+        String statusLine = readLine();
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        int length = -1;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(line.substring(colon + 1).trim());
+            }
+        }
+        if (length < 0) {
+            throw new IOException("Response without Content-Length");
+        }
+        while (length > 0) {
+            int n = in.read(skip, 0, Math.min(skip.length, length));
+            if (n < 0) {
+                throw new IOException("Connection closed");
+            }
+            length -= n;
+        }
+        return status;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,97 @@
+package calc;
+
+import java.math.BigDecimal;
+
+/*
+ *   Result of an evaluation, either a value or an error code and (if
+ *   known) the offset in the input where the error is
+ *
+ *   Decimal evaluation (see DecimalEvaluator) also gives the decimal,
+ *   unless value is exactly it.
+ */
+final class Result {
+
+    // Longer decimals are printed with an exponent
+    private final static int PLAIN_DIGITS = 40;
+
+    final double value;    // NaN if error
+    final ErrorCode error;
+    final int offset;      // -1 if not known (or no error)
+    private final BigDecimal decimal;   // Null if not decimal or value is exact
+    private final boolean exact;        // Decimal evaluation, value is exact
+
+    private Result(double value, ErrorCode error, int offset, BigDecimal decimal, boolean exact) {
+        this.value = value;
+        this.error = error;
+        this.offset = offset;
+        this.decimal = decimal;
+        this.exact = exact;
+    }
+
+    static Result of(double value) {
+        return new Result(value, ErrorCode.NONE, -1, null, false);
+    }
+
+    // Value is the nearest double
+    static Result of(BigDecimal decimal) {
+        return new Result(decimal.doubleValue(), ErrorCode.NONE, -1, decimal, false);
+    }
+
+    // A decimal result that is exactly value
+    static Result exact(double value) {
+        return new Result(value, ErrorCode.NONE, -1, null, true);
+    }
+
+    static Result error(ErrorCode error) {
+        return new Result(Double.NaN, error, -1, null, false);
+    }
+
+    static Result error(ErrorCode error, int offset) {
+        return new Result(Double.NaN, error, offset, null, false);
+    }
+
+    static Result error(Status status) {
+        return new Result(Double.NaN, status.error(), status.offset(), null, false);
+    }
+
+    // The decimal, or value as a decimal. Null if error or not finite.
+    BigDecimal decimal() {
+        if (decimal != null) {
+            return decimal;
+        }
+        return isError() || !Double.isFinite(value) ? null : new BigDecimal(value).stripTrailingZeros();
+    }
+
+    boolean isError() {
+        return error != ErrorCode.NONE;
+    }
+
+    // Compact JSON object, non finite values as strings
+    String toJson() {
+        if (isError()) {
+            return "{\"error\":\"" + error.name() + "\",\"message\":\"" + error.message + "\"" +
+                    (offset >= 0 ? ",\"offset\":" + offset : "") + "}";
+        }
+        if (decimal != null || exact) {
+            return "{\"value\":" + this + "}";
+        }
+        if (Double.isFinite(value)) {
+            return "{\"value\":" + value + "}";
+        }
+        return "{\"value\":\"" + value + "\"}";
+    }
+
+    @Override
+    public String toString() {
+        if (decimal != null) {
+            // Plain unless that is very long
+            boolean plain = decimal.scale() <= PLAIN_DIGITS && decimal.precision() - decimal.scale() <= PLAIN_DIGITS;
+            return plain ? decimal.toPlainString() : decimal.toString();
+        }
+        if (exact && value == Math.rint(value)) {
+            return Long.toString((long) value);   // As a decimal, without .0
+        }
+        return isError() ? error.message : String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,67 @@
+package calc;
+
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ *   The WebCalc page, pre-encoded
+ *
+ *   The page from PageBuilder is built and encoded once, split where the
+ *   result goes. A response is then the head bytes, the result and the
+ *   tail bytes, no StringBuilder or String encoding per request.
+ */
+final class ResultPage {
+
+    private final static String MARK = "\u0001";
+
+    private final byte[] head;
+    private final byte[] tail;
+    // Read only direct copies, for NIO (use duplicate() per write)
+    private final ByteBuffer directHead;
+    private final ByteBuffer directTail;
+
+    ResultPage() {
+        String page = WebCalcServer.getPage(MARK);
+        int i = page.indexOf(MARK);
+        head = page.substring(0, i).getBytes(UTF_8);
+        tail = page.substring(i + MARK.length()).getBytes(UTF_8);
+        directHead = direct(head);
+        directTail = direct(tail);
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(bytes.length);
+        bb.put(bytes).flip();
+        return bb.asReadOnlyBuffer();
+    }
+
+    // Whole page for result
+    byte[] render(double result) {
+        return render(ascii(result));
+    }
+
+    byte[] render(byte[] result) {
+        byte[] page = new byte[length(result)];
+        System.arraycopy(head, 0, page, 0, head.length);
+        System.arraycopy(result, 0, page, head.length, result.length);
+        System.arraycopy(tail, 0, page, head.length + result.length, tail.length);
+        return page;
+    }
+
+    int length(byte[] result) {
+        return head.length + result.length + tail.length;
+    }
+
+    // Put whole page into out, which must have room for length(result)
+    void writeTo(ByteBuffer out, byte[] result) {
+        out.put(directHead.duplicate());
+        out.put(result);
+        out.put(directTail.duplicate());
+    }
+
+    static byte[] ascii(double d) {
+        return Double.toString(d).getBytes(US_ASCII);
+    }
+}
@@ -0,0 +1,316 @@
+package calc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/*
+ *   Results of expressions kept in a file, so they survive a restart
+ *
+ *   The file is a memory mapped hash table of fixed size slots, found by
+ *   open addressing: an expression may be in any of PROBES slots after
+ *   its hash. When all of them are taken the oldest entry is evicted, so
+ *   the table never grows past the size it was created with. Nothing is
+ *   read at open, pages are loaded by the OS as they are used.
+ *
+ *   Keys are normalised (spaces that separate nothing are removed, so
+ *   "1+2" and "1 + 2" are the same) and only expressions of numbers and
+ *   + - * / ^ are stored, their results can't change between runs (as
+ *   those of registered operators or functions could).
+ *
+ *   Many threads may get concurrently, puts are serialised. Each slot
+ *   has a version, odd while it's written. A reader does not retry, a
+ *   version that changed while it read is a miss. Each slot also has a
+ *   CRC, so a slot half written when the process (or the machine)
+ *   crashed is taken as empty and the rest of the file is still good.
+ *   One process at a time, the file is locked.
+ *
+ *   Layout (native byte order):
+ *     Header  magic, format, slots, CRC of these, padded to SLOT bytes
+ *     Slot    version, sequence (insert order, 0 if empty), value bits,
+ *             error ordinal, error offset, key length, CRC, key bytes
+ */
+final class ResultStore implements Closeable {
+
+    final static int PROBES = 8;
+    final static int SLOT = 128;
+    final static int MAX_KEY = SLOT - 40;
+    // The mapped file (and slot offsets) must stay below 2 GB
+    final static int MAX_ENTRIES = 1 << 23;
+
+    private final static long MAGIC = 0x43616c6353746f72L;   // "CalcStor"
+    private final static int FORMAT = 1;
+
+    // Slot fields
+    final static int VERSION = 0;
+    final static int SEQUENCE = 8;
+    final static int VALUE = 16;
+    final static int ERROR = 24;
+    final static int OFFSET = 28;
+    final static int LENGTH = 32;
+    final static int CRC = 36;
+    final static int KEY = 40;
+
+    private final static VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private final static ErrorCode[] ERRORS = ErrorCode.values();
+
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final MappedByteBuffer map;
+    private final int slots;        // A power of two
+    private long sequence;          // Last one used, guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Open file or create it with room for at least entries. A file made
+    // for another size (or not a store) is cleared.
+    ResultStore(Path file, int entries) throws IOException {
+        if (entries < PROBES) {
+            throw new IllegalArgumentException("At least " + PROBES + " entries");
+        }
+        if (entries > MAX_ENTRIES) {
+            throw new IllegalArgumentException("At most " + MAX_ENTRIES + " entries, got " + entries);
+        }
+        slots = Integer.highestOneBit(entries - 1) << 1;
+        long size = (long) SLOT * (slots + 1);
+        channel = FileChannel.open(file, READ, WRITE, CREATE);
+        lock = tryLock(channel);
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Store in use: " + file);
+        }
+        // A new file is all zeros, that is all slots empty
+        boolean created = channel.size() != size;
+        if (created) {
+            channel.truncate(0);
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.order(ByteOrder.nativeOrder());
+        if (created || !validHeader()) {
+            clear(!created);
+        }
+        sequence = System.currentTimeMillis() << 20;
+    }
+
+    private boolean validHeader() {
+        return map.getLong(0) == MAGIC && map.getInt(8) == FORMAT && map.getInt(12) == slots &&
+                map.getInt(16) == crc(0, 16);
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;   // By this process
+        }
+    }
+
+    // Write a new header, zero all slots first unless they are already
+    private void clear(boolean zero) {
+        for (int i = 0; zero && i < map.capacity(); i += Long.BYTES) {
+            map.putLong(i, 0);
+        }
+        map.putLong(0, MAGIC);
+        map.putInt(8, FORMAT);
+        map.putInt(12, slots);
+        map.putInt(16, crc(0, 16));
+        map.force();
+    }
+
+    // ---------- Keys -----------------------
+
+    // Key for expr, or null if expr is not stored (too long, or with
+    // other than numbers, + - * / ^ and parentheses)
+    static String normalise(String expr) {
+        StringBuilder sb = new StringBuilder(expr.length());
+        boolean space = false;
+        for (int i = 0; i < expr.length(); i++) {
+            char c = expr.charAt(i);
+            if (c == ' ') {
+                space = true;
+                continue;
+            }
+            if (!isNumberChar(c) && "+-*/^()".indexOf(c) < 0) {
+                return null;
+            }
+            // A space only matters between numbers, "12 3" is not 123
+            if (space && sb.length() > 0 && isNumberChar(sb.charAt(sb.length() - 1)) && isNumberChar(c)) {
+                sb.append(' ');
+            }
+            space = false;
+            sb.append(c);
+            if (sb.length() > MAX_KEY) {
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNumberChar(char c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == ',';
+    }
+
+    // ---------- Get and put -----------------------
+
+    // Stored result for a normalised key, or null
+    Result get(String key) {
+        int h = hash(key);
+        for (int i = 0; i < PROBES; i++) {
+            int slot = slot(h, i);
+            long version = (long) LONGS.getAcquire(map, slot + VERSION);
+            if (version == 0 || (version & 1) != 0 || !matches(slot, key)) {
+                continue;
+            }
+            long bits = map.getLong(slot + VALUE);
+            int error = map.getInt(slot + ERROR);
+            int offset = map.getInt(slot + OFFSET);
+            boolean intact = map.getInt(slot + CRC) == crc(slot + SEQUENCE, CRC - SEQUENCE);
+            VarHandle.acquireFence();
+            // Unchanged while read, so key and fields belong together
+            if (intact && version == (long) LONGS.getVolatile(map, slot + VERSION) &&
+                    error >= 0 && error < ERRORS.length) {
+                hits.increment();
+                ErrorCode code = ERRORS[error];
+                return code == ErrorCode.NONE ? Result.of(Double.longBitsToDouble(bits)) :
+                        Result.error(code, offset);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Store result for a normalised key. Replaces the key if stored, else
+    // takes an empty slot or evicts the oldest one.
+    synchronized void put(String key, Result result) {
+        int h = hash(key);
+        int target = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES && oldest > 0; i++) {
+            int slot = slot(h, i);
+            if (isValid(slot) && matches(slot, key)) {
+                target = slot;
+                oldest = 0;
+            } else {
+                long seq = isValid(slot) ? map.getLong(slot + SEQUENCE) : 0;
+                if (seq < oldest) {
+                    oldest = seq;
+                    target = slot;
+                }
+            }
+        }
+        if (oldest > 0) {
+            evictions.increment();
+        }
+        write(target, key, result);
+        stores.increment();
+    }
+
+    private void write(int slot, String key, Result result) {
+        // Odd while written, a crash leaves it odd (or the CRC wrong)
+        long version = map.getLong(slot + VERSION) | 1;
+        LONGS.setVolatile(map, slot + VERSION, version);
+        VarHandle.storeStoreFence();
+        sequence++;
+        map.putLong(slot + SEQUENCE, sequence);
+        map.putLong(slot + VALUE, Double.doubleToRawLongBits(result.value));
+        map.putInt(slot + ERROR, result.error.ordinal());
+        map.putInt(slot + OFFSET, result.offset);
+        map.putInt(slot + LENGTH, key.length());
+        for (int i = 0; i < key.length(); i++) {
+            map.put(slot + KEY + i, (byte) key.charAt(i));
+        }
+        map.putInt(slot + CRC, crc(slot + SEQUENCE, CRC - SEQUENCE));
+        LONGS.setRelease(map, slot + VERSION, version + 1);
+    }
+
+    // Key and length, the caller checks that the slot is valid
+    private boolean matches(int slot, String key) {
+        if (map.getInt(slot + LENGTH) != key.length() || map.getLong(slot + SEQUENCE) == 0) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (map.get(slot + KEY + i) != (byte) key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isValid(int slot) {
+        long version = map.getLong(slot + VERSION);
+        return version != 0 && (version & 1) == 0 && map.getInt(slot + CRC) == crc(slot + SEQUENCE, CRC - SEQUENCE);
+    }
+
+    // CRC of the fields from..from+length and the key of the slot (if a slot)
+    private int crc(int from, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = from; i < from + length; i++) {
+            crc.update(map.get(i));
+        }
+        if (from >= SLOT) {
+            int slot = from - SEQUENCE;
+            int keyLength = Math.min(Math.max(map.getInt(slot + LENGTH), 0), MAX_KEY);
+            for (int i = 0; i < keyLength; i++) {
+                crc.update(map.get(slot + KEY + i));
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Byte position of probe i for hash h, slot 0 is the header
+    private int slot(int h, int i) {
+        return SLOT * (1 + ((h + i) & (slots - 1)));
+    }
+
+    // ---------- Reporting -----------------------
+
+    int capacity() {
+        return slots;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long stores() {
+        return stores.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    // Written to disk, then the file is unlocked
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        lock.release();
+        channel.close();
+    }
+}
@@ -0,0 +1,111 @@
+package calc;
+
+/*
+ *   Settings for the calculator servers
+ *
+ *   Read from system properties (-Dcalc.port=8081 ...) and then from
+ *   program arguments (port=8081 ...), so nothing needs recompiling.
+ *
+ *   port             Port to listen on (0 for any free port)
+ *   backlog          TCP backlog, 0 for the system default
+ *   threads          Threads in the pool (executor=pool)
+ *   executor         virtual (thread per request), pool or none
+ *                    (none = everything on the dispatcher thread)
+ *   shutdownSeconds  Time for active requests to finish on shutdown
+ *   store            File for results kept between runs, none if empty
+ *                    (WebCalcServer only, see ResultStore)
+ *   storeEntries     Most results in the store (at most 2^23)
+ *   maxConcurrent    Requests evaluated at a time, 0 for no admission
+ *                    control (WebCalcServer only, see AdmissionControl)
+ *   maxQueue         Requests waiting for their turn, more get a 503
+ *   deadlineMillis   Longest wait for a turn, from arrival (a turn is one
+ *                    evaluation, for each expression of a batch)
+ *   shedCost         Costlier requests get a 503 once the queue is half
+ *                    full (cost is about the length of the expression)
+ *   accessLog        Log each request to stdout (WebCalcServer only)
+ */
+final class ServerConfig {
+
+    enum Executor {
+        VIRTUAL, POOL, NONE
+    }
+
+    int port = Integer.getInteger("calc.port", 8080);
+    int backlog = Integer.getInteger("calc.backlog", 0);
+    int threads = Integer.getInteger("calc.threads", Runtime.getRuntime().availableProcessors());
+    Executor executor = Executor.valueOf(System.getProperty("calc.executor", "virtual").toUpperCase());
+    int shutdownSeconds = Integer.getInteger("calc.shutdownSeconds", 5);
+    String store = System.getProperty("calc.store", "");
+    int storeEntries = Integer.getInteger("calc.storeEntries", 1 << 16);
+    int maxConcurrent = Integer.getInteger("calc.maxConcurrent", Runtime.getRuntime().availableProcessors());
+    int maxQueue = Integer.getInteger("calc.maxQueue", 256);
+    int deadlineMillis = Integer.getInteger("calc.deadlineMillis", 1000);
+    int shedCost = Integer.getInteger("calc.shedCost", 4096);
+    boolean accessLog = Boolean.parseBoolean(System.getProperty("calc.accessLog", "true"));
+
+    // Default settings overridden by key=value arguments
+    static ServerConfig of(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            config.set(arg.substring(0, i).trim(), arg.substring(i + 1).trim());
+        }
+        return config;
+    }
+
+    void set(String key, String value) {
+        switch (key) {
+            case "port":
+                port = Integer.parseInt(value);
+                break;
+            case "backlog":
+                backlog = Integer.parseInt(value);
+                break;
+            case "threads":
+                threads = Integer.parseInt(value);
+                break;
+            case "executor":
+                executor = Executor.valueOf(value.toUpperCase());
+                break;
+            case "shutdownSeconds":
+                shutdownSeconds = Integer.parseInt(value);
+                break;
+            case "store":
+                store = value;
+                break;
+            case "storeEntries":
+                storeEntries = Integer.parseInt(value);
+                break;
+            case "maxConcurrent":
+                maxConcurrent = Integer.parseInt(value);
+                break;
+            case "maxQueue":
+                maxQueue = Integer.parseInt(value);
+                break;
+            case "deadlineMillis":
+                deadlineMillis = Integer.parseInt(value);
+                break;
+            case "shedCost":
+                shedCost = Integer.parseInt(value);
+                break;
+            case "accessLog":
+                accessLog = Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + port + " backlog=" + backlog + " threads=" + threads +
+                " executor=" + executor.name().toLowerCase() + " shutdownSeconds=" + shutdownSeconds +
+                (store.isEmpty() ? "" : " store=" + store + " storeEntries=" + storeEntries) +
+                (maxConcurrent == 0 ? "" : " maxConcurrent=" + maxConcurrent + " maxQueue=" + maxQueue +
+                        " deadlineMillis=" + deadlineMillis + " shedCost=" + shedCost) +
+                (accessLog ? "" : " accessLog=false");
+    }
+}
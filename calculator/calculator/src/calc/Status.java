@@ -0,0 +1,48 @@
+package calc;
+
+/*
+ *   Where the exception free paths report an error
+ *
+ *   Keeps the first error and its offset in the input (the start of the
+ *   bad token, or the length of the input if something is missing at
+ *   the end). One per evaluation, not thread-safe.
+ */
+final class Status {
+
+    private ErrorCode error = ErrorCode.NONE;
+    private int offset = -1;
+
+    // Records the error (if it's the first), always returns false
+    boolean fail(ErrorCode error, int offset) {
+        if (this.error == ErrorCode.NONE) {
+            this.error = error;
+            this.offset = offset;
+        }
+        return false;
+    }
+
+    boolean isError() {
+        return error != ErrorCode.NONE;
+    }
+
+    ErrorCode error() {
+        return error;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    void clear() {
+        error = ErrorCode.NONE;
+        offset = -1;
+    }
+
+    // The exception the throwing methods use for this error
+    RuntimeException exception() {
+        if (error == ErrorCode.BAD_NUMBER) {
+            return new NumberFormatException(error.message);
+        }
+        return new IllegalArgumentException(error.message);
+    }
+}
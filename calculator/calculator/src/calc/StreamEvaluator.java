@@ -0,0 +1,260 @@
+package calc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/*
+ *   Evaluates an expression read from a Reader, for huge expressions
+ *
+ *   The text is never held as a whole: it's read into a window that is
+ *   scanned (by the Lexer) up to its last space, operator or parenthesis,
+ *   where no token can go on. Each token is then validated, parsed and
+ *   evaluated before the next part is read. Parsing is the shunting-yard
+ *   of Parser, but operators go straight to a value stack instead of to a
+ *   postfix program. Only the last three tokens are kept (validation and
+ *   parsing look one token ahead and two back).
+ *
+ *   So memory grows with nesting (the operator and value stacks) and not
+ *   with length, and time is linear. Offsets are ints, at most 2^31 chars.
+ *
+ *   Results and errors are those of Calculator.evalResult for the same
+ *   text. Its phases run one after the other, so a bad number anywhere
+ *   wins over a missing operand and that over an error found by the
+ *   parser or the evaluation. Here they run together, each keeps its
+ *   first error (in its own Status) and the one of the earliest phase is
+ *   the result. Without variables, not thread-safe, use once.
+ */
+final class StreamEvaluator {
+
+    final static int WINDOW = 8192;
+    // Tokens kept for the look back
+    private final static int KEEP = 3;
+
+    private final Reader in;
+    private char[] chars = new char[WINDOW];
+    private int base;           // Offset of chars[0] in the input
+    private int filled;         // Chars in the window
+    private int scanned;        // Offset scanned to
+    private final Window window = new Window();
+
+    private final TokenBuffer tokens = new TokenBuffer(WINDOW / 2);
+    private int done;           // Tokens in the buffer already handled
+
+    private final Lexer.Validator validator = new Lexer.Validator();
+    private final Status scanStatus = new Status();
+    private final Status validStatus = new Status();
+    private final Status parseStatus = new Status();
+    private final Status evalStatus = new Status();
+
+    // Operator stack: code, offset and arguments seen (-1 if not a call's
+    // left parenthesis)
+    private int[] opCodes = new int[16];
+    private int[] opOffsets = new int[16];
+    private int[] opArgs = new int[16];
+    private int ops;
+
+    private double[] values = new double[16];
+    private int sp;
+
+    StreamEvaluator(Reader in) {
+        this.in = in;
+    }
+
+    Result run() throws IOException {
+        boolean end = false;
+        while (!end && !scanStatus.isError()) {
+            end = read();
+            int limit = end ? base + filled : safeEnd();
+            window.limit = limit;
+            if (!Lexer.scanFrom(window, scanned, tokens, scanStatus)) {
+                break;
+            }
+            scanned = limit;
+            handle(end ? tokens.size() : tokens.size() - 1);
+        }
+        if (scanStatus.isError()) {
+            return Result.error(scanStatus);
+        }
+        if (scanned == 0) {
+            return Result.of(Double.NaN);   // As for ""
+        }
+        if (!validStatus.isError()) {
+            validator.end(scanned, validStatus);
+        }
+        if (!validStatus.isError() && !parseStatus.isError()) {
+            finish();
+        }
+        for (Status status : new Status[]{validStatus, parseStatus, evalStatus}) {
+            if (status.isError()) {
+                return Result.error(status);
+            }
+        }
+        return Result.of(values[0]);
+    }
+
+    // ---------- Input -----------------------
+
+    // Read more into the window, dropping what is scanned. True at the end.
+    private boolean read() throws IOException {
+        int keep = base + filled - scanned;
+        System.arraycopy(chars, scanned - base, chars, 0, keep);
+        base = scanned;
+        filled = keep;
+        if (filled == chars.length) {
+            chars = Arrays.copyOf(chars, 2 * chars.length);   // A long token
+        }
+        int n = in.read(chars, filled, chars.length - filled);
+        if (n < 0) {
+            return true;
+        }
+        if ((long) base + filled + n > Integer.MAX_VALUE) {
+            throw new IOException("Expression longer than " + Integer.MAX_VALUE + " chars");
+        }
+        filled += n;
+        return false;
+    }
+
+    // Offset after the last char that ends a token (or scanned if none)
+    private int safeEnd() {
+        for (int i = filled - 1; i >= scanned - base; i--) {
+            char c = chars[i];
+            if (c == ' ' || Token.of(c) != Token.NONE) {
+                return base + i + 1;
+            }
+        }
+        return scanned;
+    }
+
+    // The window as the Lexer sees it, by offsets in the whole input
+    private final class Window implements CharSequence {
+        int limit;
+
+        @Override
+        public int length() {
+            return limit;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return chars[index - base];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(chars, start - base, end - start);
+        }
+    }
+
+    // ---------- Tokens -----------------------
+
+    // Validate, parse and evaluate tokens up to (not including) to
+    private void handle(int to) {
+        for (int i = done; i < to; i++) {
+            if (validStatus.isError() || !validator.check(tokens, i, validStatus)) {
+                break;
+            }
+            if (!parseStatus.isError()) {
+                parse(i);
+            }
+        }
+        done = Math.max(to, 0);
+        int drop = Math.max(done - KEEP, 0);
+        tokens.keepLast(tokens.size() - drop);
+        done -= drop;
+    }
+
+    // As Parser, but emit evaluates
+    private void parse(int i) {
+        int code = tokens.code(i);
+        int at = tokens.start(i);
+        if (Token.isOperand(code)) {
+            emit(code, tokens.value(i), at);
+        } else if (code == Token.LEFT_PAREN) {
+            int args = -1;
+            if (Parser.isCall(tokens, i)) {
+                args = i + 1 < tokens.size() && tokens.code(i + 1) == Token.RIGHT_PAREN ? 0 : 1;
+            }
+            push(code, at, args);
+        } else if (code == Token.RIGHT_PAREN || code == Token.SEPARATOR) {
+            while (ops > 0 && opCodes[ops - 1] != Token.LEFT_PAREN) {
+                ops--;
+                emit(opCodes[ops], 0, opOffsets[ops]);
+            }
+            if (ops == 0 || (code == Token.SEPARATOR && opArgs[ops - 1] < 0)) {
+                parseStatus.fail(ErrorCode.MISSING_OPERATOR, at);
+                return;
+            }
+            if (code == Token.SEPARATOR) {
+                opArgs[ops - 1]++;
+                return;
+            }
+            int count = opArgs[--ops];  // Drop left parenthesis
+            if (count >= 0) {
+                int function = opCodes[--ops];
+                int arity = Operators.arity(function);
+                if (count != arity) {
+                    parseStatus.fail(count < arity ? ErrorCode.MISSING_OPERAND : ErrorCode.MISSING_OPERATOR, at);
+                    return;
+                }
+                emit(function, 0, opOffsets[ops]);
+            }
+        } else if (Operators.isFunction(code) || Operators.isPrefix(code)) {
+            push(code, at, -1);   // The Validator checked the '(' after a function
+        } else {
+            while (ops > 0 && Parser.shouldPop(opCodes[ops - 1], code)) {
+                ops--;
+                emit(opCodes[ops], 0, opOffsets[ops]);
+            }
+            push(code, at, -1);
+        }
+    }
+
+    // Remaining operators, at the end
+    private void finish() {
+        while (ops > 0) {
+            ops--;
+            if (opCodes[ops] == Token.LEFT_PAREN) {
+                parseStatus.fail(ErrorCode.MISSING_OPERATOR, opOffsets[ops]);
+                return;
+            }
+            emit(opCodes[ops], 0, opOffsets[ops]);
+        }
+    }
+
+    private void push(int code, int at, int args) {
+        if (ops == opCodes.length) {
+            opCodes = Arrays.copyOf(opCodes, 2 * ops);
+            opOffsets = Arrays.copyOf(opOffsets, 2 * ops);
+            opArgs = Arrays.copyOf(opArgs, 2 * ops);
+        }
+        opCodes[ops] = code;
+        opOffsets[ops] = at;
+        opArgs[ops] = args;
+        ops++;
+    }
+
+    // ---------- Evaluation -----------------------
+
+    // As Program.run, after an error only parsing goes on
+    private void emit(int code, double value, int at) {
+        if (evalStatus.isError()) {
+            return;
+        }
+        if (code == Token.NUMBER) {
+            if (sp == values.length) {
+                values = Arrays.copyOf(values, 2 * sp);
+            }
+            values[sp++] = value;
+        } else if (Operators.arity(code) == 1) {
+            values[sp - 1] = Operators.apply(code, values[sp - 1]);
+        } else {
+            double right = values[--sp];
+            if (right == 0 && code == Token.DIV) {
+                evalStatus.fail(ErrorCode.DIV_BY_ZERO, at);
+                return;
+            }
+            values[sp - 1] = Operators.apply(code, values[sp - 1], right);
+        }
+    }
+}
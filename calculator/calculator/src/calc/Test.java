@@ -1,9 +1,24 @@
 package calc;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.lang.System.out;
 
@@ -36,6 +51,14 @@ class Test {
         t("(1+10) ", "( 1 + 10 )");  // List is [ "(", "1", "+", "10", ")" ]
         t("2 *( 1+10) ", "2 * ( 1 + 10 )");
         t("(1 +2) /2 *( 1+10) ", "( 1 + 2 ) / 2 * ( 1 + 10 )");
+        t("1,5 + 2..5", "1.5 + 2.5");  // Runs of commas or periods is a period
+        t("1a2 + x3", "12 + 3");        // Other chars ignored
+
+        // Token codes
+        TokenBuffer buf = new TokenBuffer();
+        Lexer.scan("12.5*(3)", buf);
+        out.println(buf.size() == 5 && buf.code(0) == Token.NUMBER && buf.value(0) == 12.5);
+        out.println(buf.code(1) == Token.MUL && buf.code(2) == Token.LEFT_PAREN && buf.value(3) == 3);
 
 
         // Infix to postfix -----------------------
@@ -93,6 +116,80 @@ class Test {
         // Mix priority and right and left associativity
         e(" 1 ^ 1 ^ 1 ^ 1  - 1", 0);
         e(" 4 - 2 - 1 ^ 2 ", 1);
+        e("(1 + 2 * 3 - 4)", 3);
+
+        // Compiled program, opcodes and a double stack
+        Program p = calculator.compile("2 * (3 + 4) ^ 2");
+        out.println(p.toString().equals("2.0 3.0 4.0 + 2.0 ^ *"));
+        out.println(p.maxDepth() == 3 && p.run() == 98);
+        StringBuilder sum = new StringBuilder("0");
+        for (int i = 1; i <= 1000; i++) {
+            sum.append(" + ").append(i);
+        }
+        out.println(calculator.eval(sum.toString()) == 500500);
+
+        // Hot expressions as MethodHandles
+        out.println(HandleCompiler.invoke(HandleCompiler.compile(p)) == 98);
+        try {
+            HandleCompiler.invoke(HandleCompiler.compile(calculator.compile("1 / (2 - 2)")));
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.DIV_BY_ZERO));
+        }
+        Promoter promoter = new Promoter(3, Runnable::run);
+        CompiledExpression hot = new CompiledExpression("4^3^2 - 1", calculator.compile("4^3^2 - 1"));
+        boolean same = true;
+        for (int i = 0; i < 5; i++) {
+            same &= promoter.eval(hot) == 262143;
+        }
+        out.println(same && promoter.promotions().size() == 1);
+        // In the background, evaluation doesn't wait for it
+        List<Runnable> waiting = new ArrayList<>();
+        Promoter later = new Promoter(3, waiting::add);
+        CompiledExpression warm = new CompiledExpression("4^3^2 - 1", calculator.compile("4^3^2 - 1"));
+        for (int i = 0; i < 5; i++) {
+            same &= later.eval(warm) == 262143;
+        }
+        same &= waiting.size() == 1 && later.promotions().isEmpty();
+        waiting.get(0).run();
+        out.println(same && later.promotions().size() == 1 && later.eval(warm) == 262143);
+
+        // Unary minus, functions and registered operators
+        e("-2 ^ 2", -4);
+        e("-2 * 3 - -1", -5);
+        e("2 ^ -1", 0.5);
+        e("sqrt(16) + max(1; 2 * 3)", 10);
+        e("-min(abs(-3); 2)", -2);
+        t("-(1) - sqrt(4)", "neg ( 1 ) - sqrt ( 4 )");
+        i2p("-2^2 + max(1;2)", "2 2 ^ neg 1 2 max +");
+        out.println(calculator.evalResult("max(1; 2; 3)").error == ErrorCode.MISSING_OPERATOR &&
+                calculator.evalResult("sqrt()").error == ErrorCode.MISSING_OPERAND &&
+                calculator.evalResult("sqrt 4").error == ErrorCode.MISSING_OPERATOR);
+        if (Operators.code("%") == Token.NONE) {
+            Operators.binary('%', 3, false, (l, r) -> l % r);
+            Operators.function("hypot", Math::hypot);
+        }
+        out.println(calculator.eval("7 % 4 * 2") == 6 && calculator.eval("hypot(3; 4)") == 5);
+        out.println(calculator.getPrecedence("%") == calculator.getPrecedence("*"));
+        Formula fn = calculator.compile("-x + max(x; y) * sqrt(y)", "x", "y");
+        double[] fx = {1, 2, 3};
+        double[] fy = {4, 9, 16};
+        double[] fo = new double[fx.length];
+        fn.evalColumns(new double[][]{fx, fy}, fo);
+        out.println(fn.eval(2, 9) == 25 && fo[0] == 7 && fo[2] == 61);
+        out.println(HandleCompiler.invoke(HandleCompiler.compile(calculator.compile("-max(3; sqrt(16)) + 1"))) == -3);
+
+        // Optimizer ----------------------------------
+        Optimizer optimizer = new Optimizer();
+        out.println(optimizer.optimize(p).toString().equals("98.0") && optimizer.removed() == 3);
+        out.println(optimizer.optimize(calculator.compile("1 / (2 - 2)")).toString().equals("1.0 0.0 /"));
+        Formula cse = calculator.compile("(2^10)*(a+b)/(b+a)", "a", "b");
+        out.println(cse.program().toString().equals("1024.0 $0 $1 + =t0 * t0 /") && cse.eval(1, 2) == 1024);
+        out.println(calculator.compile("x * 1 - 0 + x ^ 0", "x").program().toString().equals("$0 1.0 +"));
+        out.println(calculator.compile("(1 / x) ^ 0", "x").program().toString().equals("1.0 $0 / 0.0 ^"));
+        double[] xs = {0.5, 1, 2.5, Double.NaN};
+        double[] cs = new double[xs.length];
+        cse.evalColumns(new double[][]{xs, xs}, cs);
+        out.println(cs[0] == 1024 && cs[1] == 1024 && cs[2] == 1024 && Double.isNaN(cs[3]));
 
         // Exceptions -----------------------------------
         try {
@@ -115,12 +212,202 @@ class Test {
         } catch (IllegalArgumentException e) {
             out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
         }
+        // Errors as values, with offset in the input --
+        r("1 + + 2", ErrorCode.MISSING_OPERAND, 4);
+        r("12 3", ErrorCode.MISSING_OPERATOR, 3);
+        r("(1 + 2", ErrorCode.MISSING_OPERATOR, 6);
+        r("1 / (2 - 2)", ErrorCode.DIV_BY_ZERO, 2);
+        r("2 * 1 / (3 - 3)", ErrorCode.DIV_BY_ZERO, 6);
+        r("1.2.3 + 1", ErrorCode.BAD_NUMBER, 0);
+        r("max(1; 2; 3)", ErrorCode.MISSING_OPERATOR, 11);
+        Status status = new Status();
+        out.println(calculator.tryCompile("1 2 +", status) == null && status.offset() == 2);
+        out.println(calculator.evalResult("1 +").toJson().endsWith("\"offset\":3}"));
+
+        // Decimal evaluation ---------------------------
+        out.println(calculator.evalResult("0.1 + 0.2", MathContext.DECIMAL128).toString().equals("0.3"));
+        out.println(calculator.evalResult("1 / 3", MathContext.DECIMAL32).toString().equals("0.3333333"));
+        out.println(calculator.evalResult("2 ^ 100", MathContext.UNLIMITED).decimal()
+                .equals(BigDecimal.valueOf(2).pow(100)));
+        out.println(calculator.evalResult("1 / 3", MathContext.UNLIMITED).error == ErrorCode.NO_DECIMAL &&
+                calculator.evalResult("1 / (2 - 2)", MathContext.DECIMAL64).offset == 2);
+        // Fast path, exact as doubles
+        out.println(calculator.evalResult("2 ^ -2 + 3 * 4", MathContext.DECIMAL128).toString().equals("12.25"));
+        out.println(Double.isNaN(DecimalEvaluator.runExact(calculator.compile("0.1 * 3"), new double[0])) &&
+                Double.isNaN(DecimalEvaluator.runExact(calculator.compile("0.25 ^ -9"), new double[0])));
+
+        // Compiled expression cache ------------------
+        Calculator cached = new Calculator();
+        ExpressionCache cache = cached.getCache();
+        out.println(cached.eval("1 + 2 * 3") == 7);
+        out.println(cached.eval("1 + 2 * 3") == 7);
+        out.println(cache.hits() == 1 && cache.misses() == 1);
+        try {
+            cached.eval("1 + ");
+        } catch (IllegalArgumentException e) {
+            out.println(cache.size() == 1);   // Errors are not cached
+        }
+        ExpressionCache small = new ExpressionCache(2, 1000);
+        small.get("1+1", calculator::compile);
+        small.get("2+2", calculator::compile);
+        small.get("1+1", calculator::compile);   // 1+1 now most recent
+        small.get("3+3", calculator::compile);   // Evicts 2+2
+        small.get("1+1", calculator::compile);
+        out.println(small.size() == 2 && small.evictions() == 1 && small.hits() == 2);
+
+        // Batch evaluation ---------------------------
+        List<Result> rs = calculator.evalAll(Arrays.asList("1 + 2", "1 / 0", "1 +", "12 3", "2 ^ 3"));
+        out.println(rs.get(0).value == 3 && rs.get(4).value == 8);
+        out.println(rs.get(1).error == ErrorCode.DIV_BY_ZERO && rs.get(2).error == ErrorCode.MISSING_OPERAND);
+        out.println(rs.get(3).error == ErrorCode.MISSING_OPERATOR && Double.isNaN(rs.get(3).value));
+        if (Operators.code("fails") == Token.NONE) {
+            Operators.function("fails", x -> {
+                if (x < 0) {
+                    throw new IllegalStateException("Negative");
+                }
+                return x;
+            });
+        }
+        rs = calculator.evalAll(Arrays.asList("fails(1)", "fails(-1)", "1 + 1"));
+        out.println(rs.get(0).value == 1 && rs.get(1).error == ErrorCode.FAILED && rs.get(2).value == 2);
+        String[] many = new String[10_000];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = i + " * 2";
+        }
+        ErrorCode[] codes = new ErrorCode[many.length];
+        double[] values = calculator.evalAll(many, codes);
+        boolean inOrder = true;
+        for (int i = 0; i < many.length; i++) {
+            inOrder &= values[i] == i * 2 && codes[i] == ErrorCode.NONE;
+        }
+        out.println(inOrder);
+        out.println(calculator.evalAll(Stream.of("1", "2 / 0", "3"))
+                .map(Result::toString)
+                .collect(Collectors.joining(",")).equals("1.0,Division with 0,3.0"));
+        out.println(batchFile());
+
+        // Persistent results ---------------------------
+        out.println("1+2*(3-4)".equals(ResultStore.normalise(" 1 + 2 * ( 3 - 4 ) ")) &&
+                "12 3+1".equals(ResultStore.normalise("12 3 + 1")) && ResultStore.normalise("sqrt(4)") == null);
+        out.println(resultStore());
+        Path unused = Paths.get("unused.store");
+        try {
+            new ResultStore(unused, ResultStore.MAX_ENTRIES + 1).close();
+            out.println(false);
+        } catch (IllegalArgumentException e) {
+            out.println(true);
+        } catch (IOException e) {
+            out.println(false);
+        } finally {
+            unused.toFile().delete();
+        }
+
+        // Live results (incremental parsing) ---------------------------
+        IncrementalParser live = new IncrementalParser();
+        String typed = "max(12, 3) * -(4 + 5) ^ 2";
+        boolean asTyped = true;
+        for (int i = 0; i <= typed.length(); i++) {
+            asTyped &= sameResult(live.eval(typed.substring(0, i), () -> false),
+                    calculator.evalResult(typed.substring(0, i)));
+        }
+        out.println(asTyped && live.reused() > 10);
+        out.println(live.eval("1 + 2", () -> true) == null && live.eval("1 + 23", () -> false).value == 24);
+        out.println(incrementalEdits());
+
+        // Streaming, from a Reader ---------------------------
+        out.println(streamed("1 + 2 * max(3, 4) / -(2 - 0.5)") && streamed("1 / 0 + )") && streamed("(1 + 2") &&
+                streamed("max(1) + 1..2") && streamed("") && streamed("2 ^ 3 ^ 2"));
+        int deep = 100_000;
+        out.println(streamed("(".repeat(deep) + "1" + " + 1)".repeat(deep)));
+
+        // Admission control ---------------------------
+        out.println(AdmissionControl.cost("((1))") == 5 + 2 * AdmissionControl.DEPTH_COST &&
+                AdmissionControl.cost("1 + 2") == 5);
+        out.println(admission());
+        out.println(admissionByArrival());
+
+        // Reading a batch ---------------------------
+        out.println(readJson("[\"1\", \"2\" ]").equals(Arrays.asList("1", "2")) && readJson("[]").isEmpty());
+        out.println(readJson("[\"1\" \"2\"]") == null && readJson("[,\"1\"]") == null &&
+                readJson("[\"1\",]") == null && readJson("[\"1\",,\"2\"]") == null);
+
+        // Servers ---------------------------
+        out.println(nioBadEscape());
+        out.println(pagePost("Expression=%zz") == 400);   // Bad %-escape
+        out.println(pagePost("") == 400);
+        out.println(pagePost("Expression") == 400);      // No '='
+        out.println(pagePost("Expression=1%2B2") == 200);
+
+        // Shared by threads ---------------------------
+        out.println(concurrentEval(8, 20_000));
+
+        // Formulas with variables ---------------------
+        Formula f = calculator.compile("x^2 + 3*x", "x");
+        out.println(f.eval(2) == 10 && f.eval(0.5) == 1.75);
+        Formula g = calculator.compile("(a - b) / b ^ 2", "a", "b");
+        double[] as = new double[5000];
+        double[] bs = new double[5000];
+        for (int i = 0; i < as.length; i++) {
+            as[i] = i * 0.37;
+            bs[i] = 1 + i % 13;
+        }
+        double[] gs = new double[as.length];
+        g.evalColumns(new double[][]{as, bs}, gs);
+        boolean exact = true;
+        for (int i = 0; i < as.length; i++) {
+            exact &= gs[i] == g.eval(as[i], bs[i]);
+        }
+        out.println(exact);
+        try {
+            calculator.compile("x + y", "x");
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.UNKNOWN_VARIABLE));
+        }
+        try {
+            calculator.compile("2x", "x");
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
+        }
+        try {
+            g.evalColumns(new double[][]{as, new double[as.length]}, gs);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage().equals(Calculator.DIV_BY_ZERO));
+        }
+
+        // Vector kernel (if available) equals scalar bit for bit
+        Formula all = calculator.compile("(a + b) * a - b / (a + 1) ^ 2", "a", "b");
+        double[] vs = new double[1001];
+        double[] ss = new double[vs.length];
+        double[] scratch = ColumnEvaluator.scratch(all.program());
+        ColumnEvaluator.run(all.program(), new double[][]{as, bs}, vs, 0, vs.length, scratch);
+        ColumnEvaluator.run(all.program(), new double[][]{as, bs}, ss, 0, ss.length, scratch, ColumnEvaluator.SCALAR);
+        boolean bits = true;
+        for (int i = 0; i < vs.length; i++) {
+            bits &= Double.doubleToRawLongBits(vs[i]) == Double.doubleToRawLongBits(ss[i]);
+        }
+        out.println(bits);
+
+        // Metrics ------------------------------------
+        Histogram h = new Histogram();
+        h.record(50);
+        h.record(100);
+        h.record(1_000_000);
+        out.println(h.count() == 3 && h.sumNanos() == 1_000_150);
+        out.println(h.quantileNanos(0.5) == 128 && h.quantileNanos(1) == 1L << 20);
+        StringBuilder prom = new StringBuilder();
+        h.writePrometheus(prom, "t", "");
+        out.println(prom.toString().contains("t_bucket{le=\"+Inf\"} 3") && prom.toString().contains("t_count 3"));
+        // Load generator percentiles, with closed loop correction
+        out.println(LoadGen.percentile(new long[]{1, 2, 3, 4}, 0.5) == 2 &&
+                LoadGen.percentile(new long[]{1, 2, 3, 4}, 0.999) == 4 &&
+                Arrays.equals(LoadGen.backfill(new long[]{1, 1, 7}, 2), new long[]{1, 1, 3, 5, 7}));
+
         // Optional, try to fix this
-        /*try {
+        try {
             e("(1 + 2", 0);
         } catch (IllegalArgumentException e) {
             out.println(e.getMessage().equals(Calculator.MISSING_OPERATOR));
-        }*/
+        }
 
     }
 
@@ -142,12 +429,308 @@ class Test {
         out.println(result.equals(expected));
     }
 
-    // Evaluation
+    // Error result for infix, at offset
+    void r(String infix, ErrorCode error, int offset) {
+        Result result = calculator.evalResult(infix);
+        out.println(result.error == error && result.offset == offset);
+    }
+
+    // A file through BatchFile, in many small chunks, results in order
+    boolean batchFile() {
+        try {
+            Path in = Files.createTempFile("calc", ".in");
+            Path result = Files.createTempFile("calc", ".out");
+            StringBuilder text = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                text.append(i).append(" * 2\n").append("1 / 0\r\n");
+                expected.append(i * 2.0).append('\n').append(Calculator.DIV_BY_ZERO).append('\n');
+            }
+            text.append("2 ^ 10");   // No line end
+            expected.append("1024.0\n");
+            Files.writeString(in, text);
+            BatchFile batch = new BatchFile(calculator, 4, 64);
+            long lines = batch.run(in, result, null);
+            boolean ok = lines == 2001 && batch.errors() == 1000 &&
+                    Files.readString(result).equals(expected.toString());
+            Files.delete(in);
+            Files.delete(result);
+            return ok;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    // Store, reopen, survive a damaged slot, evict
+    boolean resultStore() {
+        try {
+            Path file = Files.createTempFile("calc", ".store");
+            boolean ok;
+            try (ResultStore store = new ResultStore(file, 64)) {
+                for (int i = 0; i < 40; i++) {
+                    store.put(i + "*2", Result.of(i * 2));
+                }
+                store.put("1/0", Result.error(ErrorCode.DIV_BY_ZERO, 1));
+                ok = store.get("7*2").value == 14 && store.get("1/0").offset == 1 && store.get("2+2") == null;
+            }
+            // Damage the slot of "7*2", as a crash while writing it would
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+                for (int slot = ResultStore.SLOT; slot < map.capacity(); slot += ResultStore.SLOT) {
+                    if (map.get(slot + ResultStore.KEY) == '7' && map.get(slot + ResultStore.KEY + 1) == '*') {
+                        map.putLong(slot + ResultStore.VALUE, 0);
+                    }
+                }
+            }
+            try (ResultStore store = new ResultStore(file, 64)) {
+                ok &= store.get("7*2") == null && store.get("8*2").value == 16;
+                for (int i = 0; i < 1000; i++) {
+                    store.put(i + "+1", Result.of(i + 1));
+                }
+                ok &= store.evictions() > 0 && store.get("999+1").value == 1000;
+            }
+            Files.delete(file);
+            return ok;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Random edits, each result as if the text was compiled from scratch
+    boolean incrementalEdits() {
+        Random random = new Random(19);
+        String chars = "0123456789+-*/^() .,sqrtmax";
+        IncrementalParser live = new IncrementalParser();
+        StringBuilder text = new StringBuilder();
+        boolean same = true;
+        for (int i = 0; i < 20_000; i++) {
+            int at = random.nextInt(text.length() + 1);
+            int edit = random.nextInt(10);
+            if (edit < 6 || text.length() == 0) {
+                text.insert(at, chars.charAt(random.nextInt(chars.length())));
+            } else if (edit < 9 || at == text.length()) {
+                text.deleteCharAt(Math.min(at, text.length() - 1));
+            } else {
+                text.setCharAt(at, chars.charAt(random.nextInt(chars.length())));
+            }
+            if (text.length() > 40) {
+                text.setLength(random.nextInt(40));
+            }
+            String s = text.toString();
+            same &= sameResult(live.eval(s, () -> false), calculator.evalResult(s));
+        }
+        return same;
+    }
+
+    // One slot, a queue of two: timed out, costly shed, slot handed on
+    boolean admission() {
+        AdmissionControl ac = new AdmissionControl(1, 2, 10_000, 50);
+        long late = System.nanoTime() - 20_000_000_000L;   // Past its deadline
+        boolean ok = ac.admit(10, System.nanoTime()) == AdmissionControl.Outcome.ADMITTED;
+        ok &= ac.admit(10, late) == AdmissionControl.Outcome.TIMED_OUT;
+        // Too costly with the queue half full
+        AdmissionControl.Outcome[] outcomes = new AdmissionControl.Outcome[2];
+        Thread costly = new Thread(() -> outcomes[0] = ac.admit(40, System.nanoTime()));
+        costly.start();
+        while (ac.waiting() == 0) {
+            Thread.onSpinWait();
+        }
+        ok &= ac.admit(100, System.nanoTime()) == AdmissionControl.Outcome.REJECTED;
+        // Queue full, the costliest waiter is shed for a cheaper one
+        Thread cheap = new Thread(() -> outcomes[1] = ac.admit(5, System.nanoTime()));
+        cheap.start();
+        while (ac.waiting() < 2) {
+            Thread.onSpinWait();
+        }
+        ok &= ac.admit(1, late) == AdmissionControl.Outcome.TIMED_OUT;
+        ac.release();
+        try {
+            costly.join();
+            cheap.join();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        ok &= outcomes[0] == AdmissionControl.Outcome.REJECTED && outcomes[1] == AdmissionControl.Outcome.ADMITTED;
+        ac.release();
+        return ok && ac.running() == 0 && ac.rejected() == 2 && ac.timedOut() == 2 && ac.queued() == 4;
+    }
+
+    // Two requests wait for the server's only turn, each deadline counts
+    // from its own arrival
+    boolean admissionByArrival() {
+        ServerConfig config = new ServerConfig();
+        config.maxConcurrent = 1;
+        config.deadlineMillis = 2000;
+        config.accessLog = false;
+        WebCalcServer server = new WebCalcServer(config);
+        AdmissionControl ac = server.getAdmission();
+        ac.admit(1, System.nanoTime());   // Hold the turn
+        WebCalcServer.Request early = new WebCalcServer.Request(System.nanoTime() - 1_000_000_000L);
+        WebCalcServer.Request recent = new WebCalcServer.Request(System.nanoTime());
+        Result[] results = new Result[2];
+        Thread first = new Thread(() -> results[0] = server.admittedEval(early, "1 + 2"));
+        Thread second = new Thread(() -> results[1] = server.admittedEval(recent, "3 + 4"));
+        first.start();
+        second.start();
+        while (ac.waiting() < 2 && first.isAlive()) {
+            Thread.onSpinWait();
+        }
+        boolean ok;
+        try {
+            first.join();   // The early one times out, the recent one still waits
+            ok = results[0] == null && early.outcome == AdmissionControl.Outcome.TIMED_OUT &&
+                    second.isAlive() && ac.waiting() == 1;
+            ac.release();
+            second.join();
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return ok && recent.outcome == AdmissionControl.Outcome.ADMITTED && results[1].value == 7 &&
+                ac.running() == 0 && ac.queued() == 2;
+    }
+
+    // Expressions of a JSON array, null if malformed
+    List<String> readJson(String body) {
+        ExpressionReader reader = new ExpressionReader(new java.io.StringReader(body), true);
+        List<String> exprs = new ArrayList<>();
+        try {
+            String expr;
+            while ((expr = reader.next()) != null) {
+                exprs.add(expr);
+            }
+        } catch (ExpressionReader.BadInput e) {
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return exprs;
+    }
+
+    // A bad %-escape gets a 400 and the server goes on
+    boolean nioBadEscape() {
+        ServerConfig config = new ServerConfig();
+        config.port = 0;
+        config.threads = 1;
+        NioCalcServer server = new NioCalcServer(config);
+        try {
+            server.run();
+            try (RawHttpClient client = new RawHttpClient("localhost", server.getPort())) {
+                return client.send(RawHttpClient.formPost("/", "Expression=%zz")) == 400 &&
+                        client.send(RawHttpClient.get("/eval?expr=%zz")) == 400 &&
+                        client.send(RawHttpClient.formPost("/eval", "1 + 2")) == 200;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Status of the page POST with form, on a fresh server
+    int pagePost(String form) {
+        ServerConfig config = new ServerConfig();
+        config.port = 0;
+        config.accessLog = false;
+        config.shutdownSeconds = 0;
+        WebCalcServer server = new WebCalcServer(config);
+        try {
+            server.run();
+            try (RawHttpClient client = new RawHttpClient("localhost", server.getPort())) {
+                int status = client.send(RawHttpClient.formPost("/", form));
+                // Still serving on the same connection
+                return client.send(RawHttpClient.get("/")) == 200 ? status : -1;
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Threads evaluate a mix at once on one Calculator, with a small cache
+    // (constant eviction) and promotion after a few hits. As evaluation
+    // is a pure function, each result must be the one of a Calculator
+    // used by one thread, whatever the interleaving. The cache counts
+    // every call and keeps within its limits.
+    boolean concurrentEval(int threads, int perThread) {
+        List<String> exprs = new ArrayList<>();
+        for (Corpus c : new Corpus[]{Corpus.SHORT, Corpus.NESTED, Corpus.POWER}) {
+            exprs.addAll(c.expressions());
+        }
+        exprs.addAll(Arrays.asList("1 / 0", "1 +", "(1 + 2", "12 3", "max(1)", "1 / (2 - 2)"));
+        Calculator single = new Calculator();
+        Result[] expected = new Result[exprs.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = single.evalResult(exprs.get(i));
+        }
+        ExpressionCache cache = new ExpressionCache(32, 1 << 20);
+        Calculator shared = new Calculator(cache, new Promoter(5));
+        CyclicBarrier start = new CyclicBarrier(threads);
+        AtomicInteger bad = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Random rand = new Random(t);
+            ts[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (Exception e) {
+                    bad.incrementAndGet();
+                    return;
+                }
+                for (int k = 0; k < perThread; k++) {
+                    int i = rand.nextInt(expected.length);
+                    if (k % 2 == 0) {
+                        if (!sameResult(shared.evalResult(exprs.get(i)), expected[i])) {
+                            bad.incrementAndGet();
+                        }
+                    } else {
+                        try {
+                            double value = shared.eval(exprs.get(i));
+                            if (expected[i].isError() || Double.compare(value, expected[i].value) != 0) {
+                                bad.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            if (!expected[i].isError()) {
+                                bad.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            ts[t].start();
+        }
+        try {
+            for (Thread t : ts) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return bad.get() == 0 && cache.hits() + cache.misses() == (long) threads * perThread &&
+                cache.size() <= 32 && cache.evictions() > 0;
+    }
+
+    // Same result from a Reader as from the String
+    boolean streamed(String infix) {
+        try {
+            return sameResult(calculator.evalResult(new java.io.StringReader(infix)), calculator.evalResult(infix));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean sameResult(Result a, Result b) {
+        return a.error == b.error && a.offset == b.offset &&
+                Double.doubleToLongBits(a.value) == Double.doubleToLongBits(b.value);
+    }
+
+    // Evaluation, also of the optimized program
     void e(String infix, double expected) {
         List<String> tokens = calculator.tokenize(infix);
         List<String> postfix = calculator.infix2Postfix(tokens);
         double result = calculator.evalPostfix(postfix);
-        out.println(result == expected);
+        double optimized = calculator.getOptimizer().optimize(Program.of(postfix)).run();
+        out.println(result == expected && optimized == expected);
     }
 
 }
@@ -0,0 +1,95 @@
+package calc;
+
+/*
+ *   Token codes used by the Lexer and in compiled programs
+ *
+ *   Operators and parentheses are a single char so the code for a char is
+ *   found by a table lookup, no String comparisons needed. Everything
+ *   about an operator or function (precedence, arity ...) is found by
+ *   its code in Operators.
+ */
+final class Token {
+
+    final static int NUMBER = 0;
+    final static int ADD = 1;
+    final static int SUB = 2;
+    final static int MUL = 3;
+    final static int DIV = 4;
+    final static int POW = 5;
+    final static int LEFT_PAREN = 6;
+    final static int RIGHT_PAREN = 7;
+    // Value is the index of the variable
+    final static int VARIABLE = 8;
+    // Only in optimized programs, value is the index of a temporary:
+    // LOAD pushes it, STORE sets it to the top of the stack (not popped)
+    final static int LOAD = 9;
+    final static int STORE = 10;
+    // Between function arguments, max(1; 2)
+    final static int SEPARATOR = 11;
+    // Unary minus, the first code after the fixed ones
+    final static int NEG = 12;
+
+    // Not a token, used for chars that separate or are ignored
+    final static int NONE = -1;
+
+    private final static String TEXT = " +-*/^()";
+    private final static int[] CODES = new int[128];
+
+    static {
+        java.util.Arrays.fill(CODES, NONE);
+        for (int code = ADD; code <= RIGHT_PAREN; code++) {
+            CODES[TEXT.charAt(code)] = code;
+        }
+        CODES[';'] = SEPARATOR;
+    }
+
+    private Token() {
+    }
+
+    // Code for an operator, parenthesis or separator char, else NONE
+    static int of(char c) {
+        return c < CODES.length ? CODES[c] : NONE;
+    }
+
+    // Code for token text, as from Lexer.tokenize, else NONE
+    static int code(String text) {
+        if (text.isEmpty()) {
+            return NONE;
+        }
+        char c = text.charAt(0);
+        if ((c >= '0' && c <= '9') || c == '.') {
+            return NONE;   // A number, the common case
+        }
+        int code = of(c);
+        return code != NONE && text.length() == 1 ? code : Operators.code(text);
+    }
+
+    // Make c the char for an operator (see Operators.register)
+    static void define(char c, int code) {
+        CODES[c] = code;
+    }
+
+    // Pushes a value (NUMBER, VARIABLE or LOAD)
+    static boolean isOperand(int code) {
+        return code == NUMBER || code == VARIABLE || code == LOAD;
+    }
+
+    // Any operator or function
+    static boolean isOperator(int code) {
+        return Operators.arity(code) > 0;
+    }
+
+    // Text for a code (not for NUMBER)
+    static String text(int code) {
+        switch (code) {
+            case LEFT_PAREN:
+                return "(";
+            case RIGHT_PAREN:
+                return ")";
+            case SEPARATOR:
+                return ";";
+            default:
+                return Operators.text(code);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package calc;
+
+/*
+ *   Tokens as primitive codes
+ *
+ *   Parallel arrays: code, number value (only for NUMBER) and the
+ *   [start, end) range in the input. Grows as needed and may be
+ *   reused by calling clear().
+ */
+final class TokenBuffer {
+
+    private int[] codes;
+    private double[] values;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+
+    TokenBuffer() {
+        this(16);
+    }
+
+    TokenBuffer(int capacity) {
+        capacity = Math.max(capacity, 1);
+        codes = new int[capacity];
+        values = new double[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    void add(int code, double value, int start, int end) {
+        if (size == codes.length) {
+            grow();
+        }
+        codes[size] = code;
+        values[size] = value;
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    private void grow() {
+        int capacity = codes.length * 2;
+        codes = java.util.Arrays.copyOf(codes, capacity);
+        values = java.util.Arrays.copyOf(values, capacity);
+        starts = java.util.Arrays.copyOf(starts, capacity);
+        ends = java.util.Arrays.copyOf(ends, capacity);
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    // Keep only the first size tokens
+    void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    // Keep only the last n tokens, moved to the start
+    void keepLast(int n) {
+        int from = size - Math.min(n, size);
+        System.arraycopy(codes, from, codes, 0, size - from);
+        System.arraycopy(values, from, values, 0, size - from);
+        System.arraycopy(starts, from, starts, 0, size - from);
+        System.arraycopy(ends, from, ends, 0, size - from);
+        size -= from;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int code(int i) {
+        return codes[i];
+    }
+
+    double value(int i) {
+        return values[i];
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return ends[i];
+    }
+}
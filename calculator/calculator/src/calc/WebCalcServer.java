@@ -2,19 +2,34 @@ package calc;
 
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.out;
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
 import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /*
 
@@ -23,55 +38,468 @@ import static java.net.HttpURLConnection.HTTP_OK;
         A Server to be able to do calculation on the Web
         Start this and visit localhost:8080
 
-        **** NOTHING TO DO HERE ****
+        Requests are handled concurrently (see ServerConfig for settings,
+        e.g. port=8081 executor=pool threads=16 as arguments). All share
+        one Calculator, which is safe for concurrent use. With store=file
+        results are also kept in a file (see ResultStore), so they are
+        there after a restart.
+
+        Evaluation is behind admission control (see AdmissionControl): a
+        request that can't get a turn soon gets a 503 with Retry-After,
+        instead of making everybody wait longer. A turn is held only while
+        evaluating, not while the request is read or the answer written,
+        so slow clients can't take all turns. A batch takes a turn per
+        expression.
 
  */
 public class WebCalcServer {
 
     public static void main(String[] args) throws IOException {
-        new WebCalcServer().run();
+        WebCalcServer server = new WebCalcServer(ServerConfig.of(args));
+        server.run();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
     }
 
     public final int DEFAULT_PORT = 8080;
     public final String HOME_URL = "/";
+    public final String EVAL_URL = "/eval";     // Single expression, no HTML
+    public final String BATCH_URL = "/batch";   // Many expressions per request
+    public final String METRICS_URL = "/metrics";
     private final Calculator calc = new Calculator();
+    private final ServerConfig config;
+    private HttpServer server;
+    private ResultStore store;          // Null if not configured
+    private final AdmissionControl admission;   // Null if not configured
+    private ExecutorService executor;   // Null if requests run on the dispatcher
+    // End to end time per route, filled in before the server starts
+    private final Map<String, Histogram> requestTimes = new LinkedHashMap<>();
+    private final AccessLog accessLog = new AccessLog(System.out);
+
+    // The page is rendered once, only the result is added per request
+    private final static ResultPage PAGE = new ResultPage();
+
+    private final static String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+    private final static String TEXT_PLAIN = "text/plain; charset=utf-8";
+    private final static String APPLICATION_JSON = "application/json";
+    private final static String APPLICATION_NDJSON = "application/x-ndjson";
+
+    WebCalcServer() {
+        this(new ServerConfig());
+    }
+
+    WebCalcServer(ServerConfig config) {
+        this.config = config;
+        admission = config.maxConcurrent == 0 ? null : new AdmissionControl(config.maxConcurrent,
+                config.maxQueue, config.deadlineMillis, config.shedCost);
+    }
 
-    private void run() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(DEFAULT_PORT), 0);
+    void run() throws IOException {
+        // Without this small responses wait for delayed ACKs (Nagle), must
+        // be set before the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        if (!config.store.isEmpty()) {
+            store = new ResultStore(Paths.get(config.store), config.storeEntries);
+        }
+        server = HttpServer.create(new InetSocketAddress(config.port), config.backlog);
         HttpContext context = server.createContext(HOME_URL);
-        context.setHandler(this::handleRequest);
+        context.setHandler(timed(HOME_URL, this::handleRequest));
+        server.createContext(EVAL_URL, timed(EVAL_URL, this::handleEval));
+        server.createContext(BATCH_URL, timed(BATCH_URL, this::handleBatch));
+        server.createContext(METRICS_URL, this::handleMetrics);
+        executor = createExecutor();
+        server.setExecutor(executor);
         server.start();
-        out.println("Server started. Visit localhost:" + server.getAddress().getPort());
+        out.println("Server started (" + config + "). Visit localhost:" + server.getAddress().getPort());
+    }
+
+    // Graceful shutdown, stop accepting and let active requests finish
+    void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(config.shutdownSeconds);
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(config.shutdownSeconds, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        accessLog.close();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                out.println("Closing store failed " + e.getMessage());
+            }
+        }
+        out.println("Server stopped");
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    private ExecutorService createExecutor() {
+        switch (config.executor) {
+            case VIRTUAL:
+                ExecutorService virtual = virtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                out.println("Virtual threads not available, using a pool of " + config.threads);
+                return Executors.newFixedThreadPool(config.threads);
+            case POOL:
+                return Executors.newFixedThreadPool(config.threads);
+            default:
+                return null;
+        }
+    }
+
+    // Looked up by reflection (Java 21+), so the server runs on older JDKs too
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // From the store if there, else evaluated (and stored). Errors are not
+    // stored, their offsets are in expr and not in the normalised key.
+    private Result evaluate(String expr) {
+        String key = store == null ? null : ResultStore.normalise(expr);
+        if (key == null || key.isEmpty()) {
+            return calc.evalResult(expr);
+        }
+        Result result = store.get(key);
+        if (result == null) {
+            result = calc.evalResult(expr);
+            if (!result.isError()) {
+                store.put(key, result);
+            }
+        }
+        return result;
     }
 
     // Main method to handle HTTP requests
-    private void handleRequest(HttpExchange exchange) {
+    private void handleRequest(HttpExchange exchange, Request request) {
         try {
-            out.println(exchange.getRequestMethod());
-            out.println(exchange.getRequestURI());
             if (exchange.getRequestMethod().equals("GET")) {
-                String page = getPage(Double.NaN);
-                sendResponse(exchange, page);
+                sendResponse(exchange, PAGE.render(Double.NaN));
             } else if (exchange.getRequestMethod().equals("POST")) {
-                Scanner sc = new Scanner(exchange.getRequestBody());
-                String args = sc.nextLine();
                 // This is "Expression=1+2 ..."
-                String expr = args.split("=")[1];
-                expr = URLDecoder.decode(expr, "UTF-8");
-                double result = calc.eval(expr);
-                out.println(expr + " = " + result);
-                sendResponse(exchange, getPage(result));
+                String form = new String(exchange.getRequestBody().readAllBytes(), UTF_8).trim();
+                String decoded;
+                try {
+                    decoded = queryParam(form, "Expression");
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, HTTP_BAD_REQUEST, PAGE.render("Bad request".getBytes(US_ASCII)));   // A bad %-escape
+                    return;
+                }
+                if (decoded == null) {
+                    sendResponse(exchange, HTTP_BAD_REQUEST, PAGE.render(ErrorCode.MISSING_OPERAND.message.getBytes(US_ASCII)));
+                    return;
+                }
+                Result result = admittedEval(exchange, request, decoded);
+                if (result == null) {
+                    return;
+                }
+                request.logDetail = decoded + " = " + result;
+                if (result.isError()) {
+                    sendResponse(exchange, HTTP_BAD_REQUEST, PAGE.render(result.error.message.getBytes(US_ASCII)));
+                } else {
+                    sendResponse(exchange, HTTP_OK, PAGE.render(result.value));
+                }
+            } else {
+                sendResponse(exchange, "En Error occurred".getBytes(UTF_8));
+            }
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    // Machine facing, expression as ?expr=... (GET) or as the body (POST).
+    // Result as plain text, or JSON with ?format=json
+    private void handleEval(HttpExchange exchange, Request request) {
+        try {
+            String expr;
+            boolean json;
+            try {
+                if (exchange.getRequestMethod().equals("POST")) {
+                    expr = new String(exchange.getRequestBody().readAllBytes(), UTF_8).trim();
+                } else {
+                    expr = queryParam(exchange, "expr");
+                }
+                json = isJson(exchange);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, TEXT_PLAIN, "Bad request");   // A bad %-escape
+                return;
+            }
+            if (expr == null) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, TEXT_PLAIN, "Missing expr");
+                return;
+            }
+            Result result = admittedEval(exchange, request, expr);
+            if (result == null) {
+                return;
+            }
+            if (json) {
+                sendResponse(exchange, HTTP_OK, APPLICATION_JSON, result.toJson());
             } else {
-                sendResponse(exchange, "En Error occurred");
+                sendResponse(exchange, HTTP_OK, TEXT_PLAIN, result.toString());
             }
         } catch (IOException ioe) {
             out.println("An exception occurred " + ioe.getMessage());
         }
     }
 
+    // Body is expressions, newline delimited or a JSON array of strings.
+    // One result per line is streamed back as soon as it is computed, as
+    // plain text or JSON lines (?format=json). The body is never buffered
+    // as a whole. Each expression is admitted on its own, the first one
+    // before the 200 (so an overloaded server gives a 503). Later ones
+    // that are not admitted, and malformed input, end the results with an
+    // OVERLOADED or BAD_INPUT line.
+    private void handleBatch(HttpExchange exchange, Request request) {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendResponse(exchange, HTTP_BAD_METHOD, TEXT_PLAIN, "Use POST");
+                return;
+            }
+            boolean json;
+            try {
+                json = isJson(exchange);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, TEXT_PLAIN, "Bad request");   // A bad %-escape
+                return;
+            }
+            streamBatch(exchange, request, json);
+        } catch (IOException e) {
+            out.println("An exception occurred " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void streamBatch(HttpExchange exchange, Request request, boolean json) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean jsonBody = contentType != null && contentType.startsWith(APPLICATION_JSON);
+        ExpressionReader reader = new ExpressionReader(
+                new InputStreamReader(exchange.getRequestBody(), UTF_8), jsonBody);
+        Writer w = null;   // Once the 200 is sent
+        try {
+            String expr;
+            while ((expr = reader.next()) != null) {
+                // The first counts from arrival, later ones from when read
+                long start = w == null ? request.start : System.nanoTime();
+                AdmissionControl.Outcome outcome = admit(AdmissionControl.cost(expr), start);
+                if (outcome != AdmissionControl.Outcome.ADMITTED) {
+                    if (w == null) {
+                        sendUnavailable(exchange, outcome);
+                    } else {
+                        w.write(errorLine(json, "OVERLOADED", unavailableMessage(outcome)));
+                    }
+                    return;
+                }
+                Result result;
+                try {
+                    result = evaluate(expr);
+                } finally {
+                    release();
+                }
+                if (w == null) {
+                    w = startStream(exchange, json);
+                }
+                w.write(json ? result.toJson() : result.toString());
+                w.write('\n');
+                // Send what we have before we may block on more input
+                if (!reader.hasBuffered()) {
+                    w.flush();
+                }
+            }
+            if (w == null) {
+                w = startStream(exchange, json);   // No expressions
+            }
+        } catch (ExpressionReader.BadInput e) {
+            if (w == null) {
+                sendResponse(exchange, HTTP_BAD_REQUEST, TEXT_PLAIN, "Bad input: " + e.getMessage());
+            } else {
+                // The 200 is sent, a last line tells it from a complete batch
+                w.write(errorLine(json, "BAD_INPUT", "Bad input: " + e.getMessage()));
+            }
+        } finally {
+            if (w != null) {
+                w.close();
+            }
+        }
+    }
+
+    private Writer startStream(HttpExchange exchange, boolean json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", json ? APPLICATION_NDJSON : TEXT_PLAIN);
+        exchange.sendResponseHeaders(HTTP_OK, 0);  // Chunked, length unknown
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8));
+    }
+
+    private static String errorLine(boolean json, String error, String message) {
+        return (json ? "{\"error\":\"" + error + "\",\"message\":\"" + message + "\"}" : message) + "\n";
+    }
+
+    // Prometheus text format
+    private void handleMetrics(HttpExchange exchange) {
+        StringBuilder sb = new StringBuilder();
+        calc.getMetrics().writePrometheus(sb, calc.getCache(), calc.getOptimizer());
+        sb.append("# HELP calc_request_seconds End to end time per request\n");
+        sb.append("# TYPE calc_request_seconds histogram\n");
+        for (Map.Entry<String, Histogram> e : requestTimes.entrySet()) {
+            e.getValue().writePrometheus(sb, "calc_request_seconds", "route=\"" + e.getKey() + "\"");
+        }
+        if (store != null) {
+            sb.append("# HELP calc_store_total Result store events\n");
+            sb.append("# TYPE calc_store_total counter\n");
+            sb.append("calc_store_total{event=\"hit\"} ").append(store.hits()).append('\n');
+            sb.append("calc_store_total{event=\"miss\"} ").append(store.misses()).append('\n');
+            sb.append("calc_store_total{event=\"store\"} ").append(store.stores()).append('\n');
+            sb.append("calc_store_total{event=\"eviction\"} ").append(store.evictions()).append('\n');
+        }
+        if (admission != null) {
+            sb.append("# HELP calc_admission_total Requests by admission control outcome\n");
+            sb.append("# TYPE calc_admission_total counter\n");
+            sb.append("calc_admission_total{event=\"admitted\"} ").append(admission.admitted()).append('\n');
+            sb.append("calc_admission_total{event=\"queued\"} ").append(admission.queued()).append('\n');
+            sb.append("calc_admission_total{event=\"rejected\"} ").append(admission.rejected()).append('\n');
+            sb.append("calc_admission_total{event=\"timed_out\"} ").append(admission.timedOut()).append('\n');
+            sb.append("# TYPE calc_admission_running gauge\n");
+            sb.append("calc_admission_running ").append(admission.running()).append('\n');
+            sb.append("# TYPE calc_admission_waiting gauge\n");
+            sb.append("calc_admission_waiting ").append(admission.waiting()).append('\n');
+        }
+        sb.append("# TYPE calc_access_log_dropped_total counter\n");
+        sb.append("calc_access_log_dropped_total ").append(accessLog.dropped()).append('\n');
+        try {
+            sendResponse(exchange, HTTP_OK, PROMETHEUS_TEXT, sb.toString());
+        } catch (IOException ioe) {
+            out.println("An exception occurred " + ioe.getMessage());
+        }
+    }
+
+    // Wrap handler to time it and write the access log. The handler gets
+    // its own Request, exchange attributes are shared by the whole context.
+    private HttpHandler timed(String route, RequestHandler handler) {
+        Histogram times = new Histogram();
+        requestTimes.put(route, times);
+        return exchange -> {
+            long start = System.nanoTime();
+            Request request = new Request(start);
+            try {
+                handler.handle(exchange, request);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                times.record(nanos);
+                if (config.accessLog) {
+                    accessLog.log(exchange.getRequestMethod(), exchange.getRequestURI().toString(),
+                            exchange.getResponseCode(), nanos, request.logDetail);
+                }
+            }
+        };
+    }
+
+    private interface RequestHandler {
+        void handle(HttpExchange exchange, Request request) throws IOException;
+    }
+
+    // State of one request, from timed to the handler and back
+    static final class Request {
+        final long start;           // Arrival, System.nanoTime()
+        String logDetail = "";      // Added to the access log line
+        AdmissionControl.Outcome outcome;   // Set by admittedEval
+
+        Request(long start) {
+            this.start = start;
+        }
+    }
+
     // ---------- Helper Methods ----------------
 
-    private String getPage(double result) {
+    // As below, if not admitted in time a 503 is sent
+    private Result admittedEval(HttpExchange exchange, Request request, String expr) throws IOException {
+        Result result = admittedEval(request, expr);
+        if (result == null) {
+            sendUnavailable(exchange, request.outcome);
+        }
+        return result;
+    }
+
+    // Evaluate expr in an admission turn, held only while evaluating. The
+    // deadline counts from when the request arrived. If not admitted in
+    // time null is returned, request.outcome says why.
+    Result admittedEval(Request request, String expr) {
+        request.outcome = admit(AdmissionControl.cost(expr), request.start);
+        if (request.outcome != AdmissionControl.Outcome.ADMITTED) {
+            return null;
+        }
+        try {
+            return evaluate(expr);
+        } finally {
+            release();
+        }
+    }
+
+    // Wait for a turn for cost, counting from start. If ADMITTED,
+    // release() must be called after.
+    private AdmissionControl.Outcome admit(int cost, long start) {
+        return admission == null ? AdmissionControl.Outcome.ADMITTED : admission.admit(cost, start);
+    }
+
+    private void release() {
+        if (admission != null) {
+            admission.release();
+        }
+    }
+
+    private void sendUnavailable(HttpExchange exchange, AdmissionControl.Outcome outcome) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendResponse(exchange, HTTP_UNAVAILABLE, TEXT_PLAIN, unavailableMessage(outcome));
+    }
+
+    private static String unavailableMessage(AdmissionControl.Outcome outcome) {
+        return outcome == AdmissionControl.Outcome.REJECTED ? "Overloaded" : "Timed out";
+    }
+
+    private boolean isJson(HttpExchange exchange) {
+        return "json".equals(queryParam(exchange, "format"));
+    }
+
+    private String queryParam(HttpExchange exchange, String name) {
+        return queryParam(exchange.getRequestURI().getRawQuery(), name);
+    }
+
+    // Decoded value of a query parameter in a raw query, or null
+    static String queryParam(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            int i = param.indexOf('=');
+            if (i > 0 && param.substring(0, i).equals(name)) {
+                return URLDecoder.decode(param.substring(i + 1), UTF_8);
+            }
+        }
+        return null;
+    }
+
+    // Page around the text of a result (see ResultPage)
+    static String getPage(String result) {
         PageBuilder pb = new PageBuilder();
         return pb.addTitle("Welcome to WebCalc")
                 .addH1("Welcome to WebCalc")
@@ -80,16 +508,30 @@ public class WebCalcServer {
                 .toString();
     }
 
-    private void sendResponse(HttpExchange exchange, String response) throws IOException {
-        exchange.sendResponseHeaders(HTTP_OK, response.getBytes().length);
+    private void sendResponse(HttpExchange exchange, int status, String contentType, String response)
+            throws IOException {
+        byte[] bytes = response.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private void sendResponse(HttpExchange exchange, byte[] response) throws IOException {
+        sendResponse(exchange, HTTP_OK, response);
+    }
+
+    private void sendResponse(HttpExchange exchange, int status, byte[] response) throws IOException {
+        exchange.sendResponseHeaders(status, response.length);
         OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
+        os.write(response);
         os.close();
     }
 
     // --- Helper class to build HTML Elements -----------
 
-    class PageBuilder {
+    static class PageBuilder {
         final List<String> head = new ArrayList<>();
         final List<String> body = new ArrayList<>();
 
@@ -7,6 +7,7 @@ import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import static java.lang.Math.round;
@@ -38,9 +39,33 @@ public class Neighbours extends Application {
         NA     // Not applicable (NA), used for NONEs
     }
 
+    // Actors as stored in the world (their ordinals)
+    static final byte BLUE = (byte) Actor.BLUE.ordinal();
+    static final byte RED = (byte) Actor.RED.ordinal();
+    static final byte NONE = (byte) Actor.NONE.ordinal();
+
+    // The world is a square of Actors in one flat array, row by row:
+    // (row, col) is at row * size + col. There are two such buffers,
+    // the update reads one and moves actors in the other, then they swap.
+    // The empty cells are also kept in a list, to pick one at random.
+    static final class World {
+        final int size;
+        byte[] cells;                 // Current, read by update and rendering
+        byte[] next;                  // Equal to cells between updates
+        int[] empty;                  // Empty cells of next, in any order
+        int[] moves = new int[64];    // From and to of each move in an update
+        int nMoves;
+
+        World(int size) {
+            this.size = size;
+            cells = new byte[size * size];
+            next = new byte[size * size];
+        }
+    }
+
     // Below is the *only* accepted instance variable (i.e. variables outside any method)
     // This variable may *only* be used in methods init() and updateWorld()
-    Actor[][] world;              // The world is a square matrix of Actors
+    World world;
     Random rand = new Random();
     // This is the method called by the timer to update the world
     // (i.e move unsatisfied) approx each 1/60 sec.
@@ -48,31 +73,51 @@ public class Neighbours extends Application {
         // % of surrounding neighbours that are like me
         final double threshold = 0.7;
 
-        // Copy of world
-        Actor[][] nextWorld = deepCopy(world);
+        byte[] cells = world.cells;
+        byte[] next = world.next;
+        int size = world.size;
+        world.nMoves = 0;
 
-        // Update logical state of world
-        for (int row = 0; row < world.length; row++) {
-            for (int col = 0; col < world.length; col++) {
+        // Update logical state of world, satisfaction as before any move
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < size; col++) {
                 // Ignore empty spots.
-                if (world[row][col] == Actor.NONE) continue;
+                if (cells[row * size + col] == NONE) continue;
                 // Check for satisfaction.
-                if (!isActorSatisfied(world, col, row, threshold)) {
-                    moveActorToRandomPos(nextWorld, row, col);
+                if (!isActorSatisfied(cells, size, col, row, threshold)) {
+                    int to = moveActorToRandomPos(next, size, world.empty, row, col);
+                    if (to != row * size + col) {
+                        recordMove(world, row * size + col, to);
+                    }
                 }
             }
         }
 
-        world = nextWorld;
+        // Swap, and bring the new next up to date by the same moves (not
+        // a copy of the whole world)
+        world.cells = next;
+        world.next = cells;
+        replayMoves(world);
         //new Scanner(System.in).nextLine();
     }
 
-    private Actor[][] deepCopy(Actor[][] world) {
-        Actor[][] copiedWorld = new Actor[world.length][];
-        for (int row = 0; row < world.length; row++) {
-            copiedWorld[row] = world[row].clone();
+    private void recordMove(World world, int from, int to) {
+        if (2 * world.nMoves == world.moves.length) {
+            world.moves = Arrays.copyOf(world.moves, 2 * world.moves.length);
+        }
+        world.moves[2 * world.nMoves] = from;
+        world.moves[2 * world.nMoves + 1] = to;
+        world.nMoves++;
+    }
+
+    private void replayMoves(World world) {
+        byte[] next = world.next;
+        for (int i = 0; i < world.nMoves; i++) {
+            int from = world.moves[2 * i];
+            int to = world.moves[2 * i + 1];
+            next[to] = next[from];
+            next[from] = NONE;
         }
-        return copiedWorld;
     }
 
     // This method initializes the world variable with a random distribution of Actors
@@ -89,8 +134,10 @@ public class Neighbours extends Application {
 
         // Create and populate world.
         // Origin is in top left.
-        world = createWorld((int) Math.sqrt(nLocations));
-        populateWorld(world, dist);
+        world = new World((int) Math.sqrt(nLocations));
+        populateWorld(world.cells, dist);
+        System.arraycopy(world.cells, 0, world.next, 0, world.cells.length);
+        world.empty = emptyCells(world.cells);
 
         // Should be last
         fixScreenSize(nLocations);
@@ -105,68 +152,84 @@ public class Neighbours extends Application {
                 0 <= col && col < size;
     }
 
-    private void populateWorld(Actor[][] world, double[] dist) {
-        int count = world.length * world.length;
+    // Cells row by row, the world is square
+    private void populateWorld(byte[] world, double[] dist) {
+        int count = world.length;
         double redAmount = round(count * dist[0]);
         double blueAmount = round(count * dist[1]);
-        int iteratedCells = 0;
-        for (int row = 0; row < world.length; row++) {
-            for (int col = 0; col < world.length; col++) {
-                int distribution = rand.nextInt(count - iteratedCells);
-                // If 0 < distribution < red amount, place red actor.
-                if (distribution < redAmount) {
-                    redAmount--;
-                    world[row][col] = Actor.RED;
-                }
-                // If red amount < distribution < total actor amount, place blue actor.
-                else if (distribution < blueAmount + redAmount) {
-                    blueAmount--;
-                    world[row][col] = Actor.BLUE;
-                }
-                // If total actor amount < distribution, place no actor.
-                else {
-                    world[row][col] = Actor.NONE;
-                }
-                iteratedCells++;
+        for (int i = 0; i < count; i++) {
+            int distribution = rand.nextInt(count - i);
+            // If 0 < distribution < red amount, place red actor.
+            if (distribution < redAmount) {
+                redAmount--;
+                world[i] = RED;
+            }
+            // If red amount < distribution < total actor amount, place blue actor.
+            else if (distribution < blueAmount + redAmount) {
+                blueAmount--;
+                world[i] = BLUE;
+            }
+            // If total actor amount < distribution, place no actor.
+            else {
+                world[i] = NONE;
             }
         }
     }
 
-    private Actor[][] createWorld(int size) {
-        Actor[][] world = new Actor[size][];
-        for (int i = 0; i < size; i++) {
-            world[i] = new Actor[size];
+    // Positions (row * size + col) of the empty cells
+    private int[] emptyCells(byte[] world) {
+        int[] empty = new int[count(world, NONE)];
+        int n = 0;
+        for (int i = 0; i < world.length; i++) {
+            if (world[i] == NONE) {
+                empty[n++] = i;
+            }
         }
-        return world;
+        return empty;
     }
 
-    private void moveActorToRandomPos(Actor[][] world, int row, int col) {
-        int[] newPos = findRandomEmptyPosition(world);
-        int newRow = newPos[0];
-        int newCol = newPos[1];
+    // Returns the new position (row * size + col). Empty are the empty
+    // cells of world, the one taken is replaced by the one left (a move
+    // doesn't change the number of empty cells). With no empty cell the
+    // actor stays.
+    private int moveActorToRandomPos(byte[] world, int size, int[] empty, int row, int col) {
+        if (empty.length == 0) {
+            return row * size + col;
+        }
+        int slot = findRandomEmptyPosition(empty);
+        int newPos = empty[slot];
         // Identify actor.
-        Actor actor = world[row][col];
+        byte actor = world[row * size + col];
         // Remove from old position.
-        world[row][col] = Actor.NONE;
+        world[row * size + col] = NONE;
         // Move to new position.
-        world[newRow][newCol] = actor;
+        world[newPos] = actor;
+        empty[slot] = row * size + col;
+        return newPos;
+    }
+
+    // Index in empty of a random empty cell, all equally likely. The
+    // same at any number of empty cells (no retries).
+    private int findRandomEmptyPosition(int[] empty) {
+        return rand.nextInt(empty.length);
     }
 
-    private int[] findRandomEmptyPosition(Actor[][] world) {
-        int row, col;
-        do {
-            row = rand.nextInt(world.length);
-            col = rand.nextInt(world.length);
-        } while (world[row][col] != Actor.NONE);
-        return new int[]{row, col};
+    int count(byte[] arr, byte toFind) {
+        int count = 0;
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == toFind) {
+                count++;
+            }
+        }
+        return count;
     }
 
-    private boolean isActorSatisfied(Actor[][] world, int actorCol, int actorRow, double threshold) {
+    private boolean isActorSatisfied(byte[] world, int size, int actorCol, int actorRow, double threshold) {
         //Restrictions
         int topRow = Math.max(actorRow - 1, 0);
-        int botRow = Math.min(actorRow + 1, world.length - 1);
+        int botRow = Math.min(actorRow + 1, size - 1);
         int leftCol = Math.max(actorCol - 1, 0);
-        int rightCol = Math.min(actorCol + 1, world.length - 1);
+        int rightCol = Math.min(actorCol + 1, size - 1);
         //Counters
         int blue = 0;
         int red = 0;
@@ -175,17 +238,15 @@ public class Neighbours extends Application {
             for (int col = leftCol; col <= rightCol; col++) {
                 // Ignore own position.
                 if (row == actorRow && col == actorCol) continue;
-                switch (world[row][col]) {
-                    case BLUE:
-                        blue++;
-                        break;
-                    case RED:
-                        red++;
-                        break;
+                byte actor = world[row * size + col];
+                if (actor == BLUE) {
+                    blue++;
+                } else if (actor == RED) {
+                    red++;
                 }
             }
         }
-        int sameColor = world[actorRow][actorCol] == Actor.BLUE ? blue : red;
+        int sameColor = world[actorRow * size + actorCol] == BLUE ? blue : red;
         double satisfaction = (double)sameColor / (blue + red);
         return satisfaction >= threshold;
     }
@@ -196,14 +257,14 @@ public class Neighbours extends Application {
     // to see that they really work
     void test() {
         // A small hard coded world for testing
-        Actor[][] testWorld = new Actor[][]{
+        byte[] testWorld = toCells(new Actor[][]{
                 {Actor.RED, Actor.RED, Actor.NONE},
                 {Actor.NONE, Actor.BLUE, Actor.NONE},
                 {Actor.RED, Actor.NONE, Actor.BLUE}
-        };
+        });
         double th = 0.5;   // Simple threshold used for testing
 
-        int size = testWorld.length;
+        int size = 3;
         out.println(isValidLocation(size, 0, 0));
         out.println(!isValidLocation(size, -1, 0));
         out.println(!isValidLocation(size, 0, 3));
@@ -211,81 +272,96 @@ public class Neighbours extends Application {
         out.println();
 
         // More tests
-        /* findRandomEmptyPosition */
-        int[] randPos = findRandomEmptyPosition(testWorld);
-        out.println((randPos[1] == 0 && randPos[0] == 1) ||
-                (randPos[1] == 1 && randPos[0] == 2) ||
-                (randPos[1] == 2 && (randPos[0] == 0 || randPos[0] == 1))
-        );
-        randPos = findRandomEmptyPosition(testWorld);
-        out.println((randPos[1] == 0 && randPos[0] == 1) ||
-                (randPos[1] == 1 && randPos[0] == 2) ||
-                (randPos[1] == 2 && (randPos[0] == 0 || randPos[0] == 1))
-        );
-        randPos = findRandomEmptyPosition(testWorld);
-        out.println((randPos[1] == 0 && randPos[0] == 1) ||
-                (randPos[1] == 1 && randPos[0] == 2) ||
-                (randPos[1] == 2 && (randPos[0] == 0 || randPos[0] == 1))
-        );
+        /* findRandomEmptyPosition, empty are (0, 2), (1, 0), (1, 2) and (2, 1) */
+        int[] empty = emptyCells(testWorld);
+        out.println(Arrays.equals(empty, new int[]{2, 3, 5, 7}));
+        int randPos = empty[findRandomEmptyPosition(empty)];
+        out.println(randPos == 2 || randPos == 3 || randPos == 5 || randPos == 7);
+        randPos = empty[findRandomEmptyPosition(empty)];
+        out.println(randPos == 2 || randPos == 3 || randPos == 5 || randPos == 7);
+        randPos = empty[findRandomEmptyPosition(empty)];
+        out.println(randPos == 2 || randPos == 3 || randPos == 5 || randPos == 7);
         out.println();
 
         /* isSatisfied */
-        out.println(isActorSatisfied(testWorld, 0, 0, th));
-        out.println(!isActorSatisfied(testWorld, 1, 1, th));
-        out.println(isActorSatisfied(testWorld, 2, 2, th));
+        out.println(isActorSatisfied(testWorld, size, 0, 0, th));
+        out.println(!isActorSatisfied(testWorld, size, 1, 1, th));
+        out.println(isActorSatisfied(testWorld, size, 2, 2, th));
         out.println();
 
         /* moveActorToRandomPos */
-        out.println(testWorld[0][0] == Actor.RED);
-        moveActorToRandomPos(testWorld, 0, 0);
-        out.println(testWorld[0][0] == Actor.NONE);
-        int blueCount = 0;
-        int redCount = 0;
-        for (int y = 0; y < testWorld.length; y++) {
-            redCount += count(testWorld[y], Actor.RED);
-            blueCount += count(testWorld[y], Actor.BLUE);
-        }
-        out.println(redCount == 3);
-        out.println(blueCount == 2);
+        out.println(testWorld[0] == RED);
+        int to = moveActorToRandomPos(testWorld, size, empty, 0, 0);
+        out.println(testWorld[0] == NONE && testWorld[to] == RED);
+        out.println(sameCells(empty, emptyCells(testWorld)));
+        out.println(count(testWorld, RED) == 3);
+        out.println(count(testWorld, BLUE) == 2);
         out.println();
 
         /* count distributed actors */
-        Actor[][] testWorld1 = createWorld(3);
-        Actor[][] testWorld2 = createWorld(3);
-        Actor[][] testWorld3 = createWorld(3);
+        byte[] testWorld1 = new byte[9];
+        byte[] testWorld2 = new byte[9];
+        byte[] testWorld3 = new byte[9];
         populateWorld(testWorld1, new double[]{0.25, 0.25, 0.5});
         populateWorld(testWorld2, new double[]{0.25, 0.25, 0.5});
         populateWorld(testWorld3, new double[]{0.25, 0.25, 0.5});
-        out.println(count2DArray(testWorld1, Actor.BLUE) == 2);
-        out.println(count2DArray(testWorld2, Actor.BLUE) == 2);
-        out.println(count2DArray(testWorld3, Actor.BLUE) == 2);
-        out.println(count2DArray(testWorld1, Actor.RED) == 2);
-        out.println(count2DArray(testWorld2, Actor.RED) == 2);
-        out.println(count2DArray(testWorld3, Actor.RED) == 2);
-        out.println(count2DArray(testWorld1, Actor.NONE) == 5);
-        out.println(count2DArray(testWorld2, Actor.NONE) == 5);
-        out.println(count2DArray(testWorld3, Actor.NONE) == 5);
+        out.println(count(testWorld1, BLUE) == 2);
+        out.println(count(testWorld2, BLUE) == 2);
+        out.println(count(testWorld3, BLUE) == 2);
+        out.println(count(testWorld1, RED) == 2);
+        out.println(count(testWorld2, RED) == 2);
+        out.println(count(testWorld3, RED) == 2);
+        out.println(count(testWorld1, NONE) == 5);
+        out.println(count(testWorld2, NONE) == 5);
+        out.println(count(testWorld3, NONE) == 5);
+        out.println();
+
+        /* updateWorld, buffers equal after the swap */
+        world = new World(30);
+        populateWorld(world.cells, new double[]{0.25, 0.25, 0.5});
+        System.arraycopy(world.cells, 0, world.next, 0, world.cells.length);
+        world.empty = emptyCells(world.cells);
+        byte[] before = world.cells.clone();
+        updateWorld();
+        out.println(world.nMoves > 0 && Arrays.equals(world.cells, world.next));
+        out.println(sameCells(world.empty, emptyCells(world.cells)));
+        out.println(count(world.cells, RED) == count(before, RED) &&
+                count(world.cells, BLUE) == count(before, BLUE));
+
+        /* No empty cell, nobody moves */
+        byte[] full = toCells(new Actor[][]{
+                {Actor.RED, Actor.BLUE},
+                {Actor.BLUE, Actor.RED}
+        });
+        out.println(moveActorToRandomPos(full, 2, emptyCells(full), 0, 0) == 0 && full[0] == RED);
+        world = new World(2);
+        world.cells = full.clone();
+        world.next = full.clone();
+        world.empty = emptyCells(full);
+        updateWorld();
+        out.println(Arrays.equals(world.cells, full) && Arrays.equals(world.next, full));
 
         exit(0);
     }
 
-    // Helper method for testing (NOTE: reference equality)
-    <T> int count(T[] arr, T toFind) {
-        int count = 0;
-        for (int i = 0; i < arr.length; i++) {
-            if (arr[i] == toFind) {
-                count++;
+    // Helper method for testing, the world row by row
+    byte[] toCells(Actor[][] actors) {
+        byte[] cells = new byte[actors.length * actors.length];
+        for (int row = 0; row < actors.length; row++) {
+            for (int col = 0; col < actors.length; col++) {
+                cells[row * actors.length + col] = (byte) actors[row][col].ordinal();
             }
         }
-        return count;
+        return cells;
     }
 
-    <T> int count2DArray(T[][] arr, T toFind) {
-        int sum = 0;
-        for (int row = 0; row < arr.length; row++) {
-            sum += count(arr[row], toFind);
-        }
-        return sum;
+    // Same cells, in any order
+    boolean sameCells(int[] a, int[] b) {
+        int[] sortedA = a.clone();
+        int[] sortedB = b.clone();
+        Arrays.sort(sortedA);
+        Arrays.sort(sortedB);
+        return Arrays.equals(sortedA, sortedB);
     }
 
     // ###########  NOTHING to do below this row, it's JavaFX stuff  ###########
@@ -314,7 +390,7 @@ public class Neighbours extends Application {
         root.getChildren().addAll(canvas);
         GraphicsContext gc = canvas.getGraphicsContext2D();
 
-        renderWorld(gc, world);
+        renderWorld(gc, world.cells, world.size);
         // Create a timer
         AnimationTimer timer = new AnimationTimer() {
             // This method called by FX, parameter is the current time
@@ -322,7 +398,7 @@ public class Neighbours extends Application {
                 long elapsedNanos = currentNanoTime - previousTime;
                 if (elapsedNanos > interval) {
                     updateWorld();
-                    renderWorld(gc, world);
+                    renderWorld(gc, world.cells, world.size);
                     previousTime = currentNanoTime;
                 }
             }
@@ -338,17 +414,16 @@ public class Neighbours extends Application {
 
 
     // Render the state of the world to the screen
-    public void renderWorld(GraphicsContext g, Actor[][] world) {
+    public void renderWorld(GraphicsContext g, byte[] world, int size) {
         g.clearRect(0, 0, width, height);
-        int size = world.length;
         for (int row = 0; row < size; row++) {
             for (int col = 0; col < size; col++) {
                 double x = dotSize * col + margin;
                 double y = dotSize * row + margin;
 
-                if (world[row][col] == Actor.RED) {
+                if (world[row * size + col] == RED) {
                     g.setFill(Color.RED);
-                } else if (world[row][col] == Actor.BLUE) {
+                } else if (world[row * size + col] == BLUE) {
                     g.setFill(Color.BLUE);
                 } else {
                     g.setFill(Color.WHITE);